@@ -0,0 +1,275 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.Maths;
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.DirectStore;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Supports a simple interface for int -> int[] off heap which can be updated and searched by many threads and
+ * processes at once without a lock.
+ * <p></p>
+ * The layout of the 8-byte slots is the same as for {@link VanillaIntIntMultiMap}, and each slot is only changed
+ * with a CAS.  A removed entry is replaced with a tombstone rather than shifting the rest of the chain back, so a
+ * concurrent search never misses an entry which was moved.  A put reuses the first tombstone on its chain once it
+ * has found the pair isn't already there.  Tombstones which aren't reused lengthen the chains searched, so they are
+ * dropped by {@link #rehash()} once {@link #needsRehash()}, and on {@link #clear()}.
+ * <p></p>
+ * The stateful {@link #startSearch(int)} and {@link #nextPos()} are only safe for one thread at a time; concurrent
+ * searches must each use their own {@link IntIntMultiMap.Cursor}.  A key/value pair added by two threads at once
+ * may be stored twice, so each value should only be added by one thread, as the positions of entries are.
+ */
+class ConcurrentIntIntMultiMap implements IntIntMultiMap {
+    private static final int ENTRY_SIZE = 8;
+    private static final int ENTRY_SIZE_SHIFT = 3;
+
+    /**
+     * Separate method because it is too easy to forget to cast to long
+     * before shifting.
+     */
+    private static long indexToPos(int index) {
+        return ((long) index) << ENTRY_SIZE_SHIFT;
+    }
+
+    private static final int UNSET_KEY = 0;
+    private static final int HASH_INSTEAD_OF_UNSET_KEY = -1;
+    private static final int UNSET_VALUE = Integer.MIN_VALUE;
+    private static final long UNSET_ENTRY = Integer.MIN_VALUE & 0xFFFFFFFFL;
+    /**
+     * An unset key with a value no position can have. Unlike an unset entry, it doesn't end a search.
+     */
+    private static final long DELETED_ENTRY = 0xFFFFFFFFL;
+
+    private final int capacity;
+    private final int capacityMask;
+    private final long capacityMask2;
+    private final Bytes bytes;
+    // left by this instance and not yet reused, other processes using the same bytes have their own count.
+    private final AtomicInteger tombstones = new AtomicInteger();
+
+    public ConcurrentIntIntMultiMap(int minCapacity) {
+        if (minCapacity < 0)
+            throw new IllegalArgumentException();
+        capacity = Maths.nextPower2(minCapacity, 16);
+        capacityMask = capacity - 1;
+        capacityMask2 = indexToPos(capacity - 1);
+        bytes = new DirectStore(null, capacity * ENTRY_SIZE, false).createSlice();
+        clear();
+    }
+
+    public ConcurrentIntIntMultiMap(Bytes bytes) {
+        capacity = (int) (bytes.capacity() / ENTRY_SIZE);
+        assert capacity == Maths.nextPower2(capacity, 16);
+        capacityMask = capacity - 1;
+        capacityMask2 = indexToPos(capacity - 1);
+        this.bytes = bytes;
+    }
+
+    private static boolean isEndOfChain(long entry) {
+        return (int) (entry >> 32) == UNSET_KEY && entry != DELETED_ENTRY;
+    }
+
+    @Override
+    public void put(int key, int value) {
+        if (!putLimited(key, value, capacityMask + 1))
+            throw new IllegalStateException("ConcurrentIntIntMultiMap is full");
+    }
+
+    public boolean putLimited(int key, int value, int limit) {
+        if (key == UNSET_KEY)
+            key = HASH_INSTEAD_OF_UNSET_KEY;
+        long newEntry = (((long) key) << 32) | (value & 0xFFFFFFFFL);
+        while (true) {
+            long pos = indexToPos(key & capacityMask);
+            long freePos = -1, freeEntry = 0;
+            // the pair is known to be absent at the end of its chain, or once every slot has been checked.
+            boolean absent = limit > capacityMask;
+            for (int i = 0; i < limit; i++) {
+                long entry = bytes.readVolatileLong(pos);
+                if (entry == newEntry)
+                    return true;
+                if ((int) (entry >> 32) == UNSET_KEY) {
+                    if (freePos < 0) {
+                        freePos = pos;
+                        freeEntry = entry;
+                    }
+                    // keep looking past a tombstone in case the pair is already present.
+                    if (entry != DELETED_ENTRY) {
+                        absent = true;
+                        break;
+                    }
+                }
+                pos = (pos + ENTRY_SIZE) & capacityMask2;
+            }
+            if (freePos < 0 || !absent)
+                return false;
+            if (bytes.compareAndSwapLong(freePos, freeEntry, newEntry)) {
+                if (freeEntry == DELETED_ENTRY)
+                    tombstones.decrementAndGet();
+                return true;
+            }
+            // another thread took the slot first, search again.
+        }
+    }
+
+    @Override
+    public boolean remove(int key, int value) {
+        if (key == UNSET_KEY)
+            key = HASH_INSTEAD_OF_UNSET_KEY;
+        long oldEntry = (((long) key) << 32) | (value & 0xFFFFFFFFL);
+        long pos = indexToPos(key & capacityMask);
+        for (int i = 0; i <= capacityMask; ) {
+            long entry = bytes.readVolatileLong(pos);
+            if (entry == oldEntry) {
+                if (bytes.compareAndSwapLong(pos, oldEntry, DELETED_ENTRY)) {
+                    tombstones.incrementAndGet();
+                    return true;
+                }
+                // changed under us, read the same slot again without counting it as another slot searched.
+                continue;
+            }
+            if (isEndOfChain(entry))
+                return false;
+            pos = (pos + ENTRY_SIZE) & capacityMask2;
+            i++;
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of tombstones left by the removes of this instance and not reused by its puts.
+     */
+    public int tombstones() {
+        return tombstones.get();
+    }
+
+    /**
+     * @return true once more than a quarter of the slots are tombstones, so searches are scanning long chains.
+     */
+    public boolean needsRehash() {
+        return tombstones.get() > capacity >> 2;
+    }
+
+    /**
+     * Drop every tombstone by adding the entries again, so each chain is no longer than its entries.
+     * <p></p>
+     * Not thread safe, the map must not be in use by any other thread or process, as for {@link #clear()}.
+     */
+    public void rehash() {
+        long[] entries = new long[capacity];
+        int count = 0;
+        for (int pos = 0; pos < bytes.capacity(); pos += ENTRY_SIZE) {
+            long entry = bytes.readLong(pos);
+            if ((int) (entry >> 32) != UNSET_KEY)
+                entries[count++] = entry;
+        }
+        clear();
+        for (int i = 0; i < count; i++) {
+            long pos = indexToPos((int) (entries[i] >> 32) & capacityMask);
+            while (bytes.readLong(pos) != UNSET_ENTRY)
+                pos = (pos + ENTRY_SIZE) & capacityMask2;
+            bytes.writeLong(pos, entries[i]);
+        }
+    }
+
+    /////////////////////
+    // Stateful methods
+
+    private final Cursor cursor = new Cursor();
+
+    @Override
+    public int startSearch(int key) {
+        return startSearch(cursor, key);
+    }
+
+    @Override
+    public int nextPos() {
+        return nextPos(cursor);
+    }
+
+    @Override
+    public int startSearch(Cursor cursor, int key) {
+        if (key == UNSET_KEY)
+            key = HASH_INSTEAD_OF_UNSET_KEY;
+
+        cursor.searchPos = indexToPos(key & capacityMask);
+        return cursor.searchHash = key;
+    }
+
+    @Override
+    public int nextPos(Cursor cursor) {
+        long searchPos = cursor.searchPos;
+        for (int i = 0; i < capacity; i++) {
+            long entry = bytes.readVolatileLong(searchPos);
+            if (isEndOfChain(entry)) {
+                cursor.searchPos = searchPos;
+                return UNSET_VALUE;
+            }
+            searchPos = (searchPos + ENTRY_SIZE) & capacityMask2;
+            if ((int) (entry >> 32) == cursor.searchHash) {
+                cursor.searchPos = searchPos;
+                return (int) entry;
+            }
+        }
+        cursor.searchPos = searchPos;
+        return UNSET_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{ ");
+        for (int i = 0, pos = 0; i < capacity; i++, pos += ENTRY_SIZE) {
+            long entry = bytes.readVolatileLong(pos);
+            int key = (int) (entry >> 32);
+            int value = (int) entry;
+            if (key != UNSET_KEY)
+                sb.append(key).append('=').append(value).append(", ");
+        }
+        if (sb.length() > 2) {
+            sb.setLength(sb.length() - 2);
+            return sb.append(" }").toString();
+        }
+        return "{ }";
+    }
+
+    @Override
+    public void forEach(EntryConsumer action) {
+        for (int i = 0, pos = 0; i < capacity; i++, pos += ENTRY_SIZE) {
+            long entry = bytes.readVolatileLong(pos);
+            int key = (int) (entry >> 32);
+            int value = (int) entry;
+            if (key != UNSET_KEY) {
+                action.accept(key, value);
+            }
+        }
+    }
+
+    /**
+     * Not thread safe, the map must not be in use by any other thread or process.
+     */
+    @Override
+    public void clear() {
+        for (int pos = 0; pos < bytes.capacity(); pos += ENTRY_SIZE) {
+            bytes.writeLong(pos, UNSET_ENTRY);
+        }
+        tombstones.set(0);
+    }
+}
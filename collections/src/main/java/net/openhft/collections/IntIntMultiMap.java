@@ -25,6 +25,14 @@ interface IntIntMultiMap {
         void accept(int key, int value);
     }
 
+    /**
+     * Search state held by the caller rather than the map, so more than one thread can search at once.
+     */
+    static final class Cursor {
+        int searchHash = -1;
+        long searchPos = -1;
+    }
+
     /**
      * Add an entry.  Allow duplicate hashes, but not key/position pairs.
      *
@@ -66,6 +74,20 @@ interface IntIntMultiMap {
      */
     int nextPos();
 
+    /**
+     * Used for start a search for a given key, keeping the state of the search in the cursor provided.
+     *
+     * @return normalized key value, better to be used in subsequent calls
+     */
+    int startSearch(Cursor cursor, int key);
+
+    /**
+     * Used for getting the next position for the search held by the cursor
+     *
+     * @return the next position for the search or negative value
+     */
+    int nextPos(Cursor cursor);
+
     void clear();
 
     void forEach(EntryConsumer action);
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import com.sun.jna.Native;
+import com.sun.jna.Platform;
+
+import java.io.FileDescriptor;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Calls into the C library via JNA, mostly for the memory of a map.  JNA is an optional dependency, and these are only
+ * supported on 64-bit Linux, so every call returns false if they are not available rather than failing.
+ */
+final class NativeMemory {
+    private static final Logger LOGGER = Logger.getLogger(NativeMemory.class.getName());
+    private static final boolean AVAILABLE;
+    private static final Field FD_FIELD;
+    static final int MADV_WILLNEED = 3;
+    static final int MADV_REMOVE = 9;
+    static final int MS_SYNC = 4;
+    static final int FALLOC_FL_KEEP_SIZE = 1;
+    static final int FALLOC_FL_PUNCH_HOLE = 2;
+
+    static {
+        boolean available = false;
+        try {
+            if (Platform.isLinux() && Platform.is64Bit()) {
+                Native.register(NativeMemory.class, "c");
+                available = true;
+            }
+        } catch (Throwable t) {
+            // JNA is not on the class path or couldn't load the C library.
+            LOGGER.log(Level.FINE, "Native memory calls are not available", t);
+        }
+        AVAILABLE = available;
+        FD_FIELD = available ? fdField() : null;
+    }
+
+    /**
+     * @return the fd field of FileDescriptor, or null if it can't be read, which is logged once as a warning as
+     * fallocate() then falls back to slower or weaker alternatives.
+     */
+    private static Field fdField() {
+        try {
+            Field field = FileDescriptor.class.getDeclaredField("fd");
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            // e.g. on Java 16+ without --add-opens java.base/java.io=ALL-UNNAMED
+            LOGGER.log(Level.WARNING, "Unable to obtain the fd of files, so fallocate() is not available", e);
+            return null;
+        }
+    }
+
+    private NativeMemory() {
+    }
+
+    private static native int madvise(long address, long length, int advice);
+
+    private static native int mlock(long address, long length);
+
+    private static native int fallocate(int fd, int mode, long offset, long length);
+
+    private static native int msync(long address, long length, int flags);
+
+    private static native long readlink(String path, byte[] buffer, long size);
+
+    static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * @return the error number of the last call which failed.
+     */
+    static int lastError() {
+        return AVAILABLE ? Native.getLastError() : 0;
+    }
+
+    /**
+     * Advise the kernel how a region will be used, extended to whole pages.
+     *
+     * @return true if the advice was accepted.
+     */
+    static boolean madvise(long address, long length, int advice, int pageSize) {
+        if (!AVAILABLE)
+            return false;
+        final long start = address & -pageSize;
+        return madvise(start, length + address - start, advice) == 0;
+    }
+
+    /**
+     * Advise the kernel about the whole pages within a region, leaving partial pages at either end alone, e.g. to
+     * release memory without affecting neighbouring data.
+     *
+     * @return true if the advice was accepted, or there were no whole pages.
+     */
+    static boolean madviseWithin(long address, long length, int advice, int pageSize) {
+        if (!AVAILABLE)
+            return false;
+        final long start = (address + pageSize - 1) & -pageSize;
+        final long end = (address + length) & -pageSize;
+        return end <= start || madvise(start, end - start, advice) == 0;
+    }
+
+    /**
+     * Allocate, or with a mode such as FALLOC_FL_PUNCH_HOLE release, the disk blocks of a region of a file.
+     *
+     * @return true if done, false if not supported by the file system or the fd couldn't be obtained.
+     */
+    static boolean fallocate(FileDescriptor descriptor, int mode, long offset, long length) {
+        if (FD_FIELD == null)
+            return false;
+        try {
+            return fallocate(FD_FIELD.getInt(descriptor), mode, offset, length) == 0;
+        } catch (IllegalAccessException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Lock a region in memory so it can't be swapped out.
+     *
+     * @return true if locked, false if not supported or not permitted, e.g. by RLIMIT_MEMLOCK.
+     */
+    static boolean mlock(long address, long length, int pageSize) {
+        if (!AVAILABLE)
+            return false;
+        final long start = address & -pageSize;
+        return mlock(start, length + address - start) == 0;
+    }
+
+    /**
+     * Write back the dirty pages of a mapped region to its file, extended to whole pages, e.g. with MS_SYNC to wait
+     * until they are written.
+     *
+     * @return true if written, false if not supported or it failed.
+     */
+    static boolean msync(long address, long length, int flags, int pageSize) {
+        if (!AVAILABLE)
+            return false;
+        final long start = address & -pageSize;
+        return msync(start, length + address - start, flags) == 0;
+    }
+
+    /**
+     * @return the target of a symbolic link, or null if not supported or it isn't a link, e.g. pid:[4026531836] for
+     * /proc/self/ns/pid which the JDK can't read before Java 7.
+     */
+    static String readlink(String path) {
+        if (!AVAILABLE)
+            return null;
+        byte[] buffer = new byte[256];
+        long length = readlink(path, buffer, buffer.length);
+        if (length <= 0 || length >= buffer.length)
+            return null;
+        try {
+            return new String(buffer, 0, (int) length, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.Jvm;
+
+import java.io.File;
+
+/**
+ * Checks whether another process using a map is still running.
+ * <p></p>
+ * A process id only identifies a process within a pid namespace, e.g. of one container, and /proc only lists the
+ * processes in the namespace of this one.  A map records the namespace of the processes which write to it, see
+ * {@link #pidNamespace()}, and only trusts this check when they all share one.
+ */
+final class Processes {
+    private static final File PROC = new File("/proc");
+    // without /proc, e.g. not Linux, every process is assumed to be alive.
+    private static final boolean CAN_CHECK = new File(PROC, "self").exists();
+    private static final long PID_NAMESPACE = readPidNamespace();
+
+    private Processes() {
+    }
+
+    /**
+     * A process id can be reused after the process dies, so this can say a dead process is alive, but not the
+     * other way around.
+     *
+     * @param processId to check
+     * @return false only if the process is known to have exited.
+     */
+    static boolean isAlive(int processId) {
+        if (!CAN_CHECK || processId == Jvm.getProcessId())
+            return true;
+        return new File(PROC, Integer.toString(processId)).exists();
+    }
+
+    /**
+     * @return the inode of the pid namespace of this process, which is the same for every process in it, or 0 if
+     * it can't be read, e.g. without JNA.
+     */
+    static long pidNamespace() {
+        return PID_NAMESPACE;
+    }
+
+    private static long readPidNamespace() {
+        if (!CAN_CHECK)
+            return 0;
+        // e.g. pid:[4026531836]
+        String link = NativeMemory.readlink("/proc/self/ns/pid");
+        if (link == null || !link.startsWith("pid:[") || !link.endsWith("]"))
+            return 0;
+        try {
+            return Long.parseLong(link.substring(5, link.length() - 1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -45,6 +45,248 @@ public interface SharedHashMap<K, V> extends ConcurrentMap<K, V>, Closeable {
      */
     V acquireUsing(K key, V value);
 
+    /**
+     * Put a value, copying the value it replaces into previousValue instead of creating a new object.  This returns
+     * the previous value even if {@link SharedHashMapBuilder#putReturnsNull(boolean)} is set.
+     * <p></p>
+     * The entry is overwritten, so the previous value is always copied, never referenced.  Only a BytesMarshallable
+     * can be copied into, so other value types must pass null.  For a generated value type, previousValue must be a
+     * heap instance from {@link net.openhft.lang.model.DataValueClasses#newInstance(Class)}.
+     *
+     * @param key           to put.
+     * @param value         to put.
+     * @param previousValue to copy the previous value into, if null a new object will be created.
+     * @return previousValue, or null if there was no entry for the key.
+     * @throws IllegalArgumentException if previousValue is not null and not BytesMarshallable.
+     */
+    V putUsing(K key, V value, V previousValue);
+
+    /**
+     * Remove an entry, copying the value removed into removedValue instead of creating a new object.  This returns
+     * the value even if {@link SharedHashMapBuilder#removeReturnsNull(boolean)} is set.
+     *
+     * @param key          to remove.
+     * @param removedValue to copy the value removed into, if null a new object will be created.
+     * @return removedValue, or null if there was no entry for the key.
+     * @throws IllegalArgumentException if removedValue is not null and not BytesMarshallable.
+     * @see #putUsing(Object, Object, Object)
+     */
+    V removeUsing(K key, V removedValue);
+
+    /**
+     * Replace the value of an existing entry, copying the value replaced into previousValue instead of creating a
+     * new object.
+     *
+     * @param key           to replace.
+     * @param value         to replace it with.
+     * @param previousValue to copy the previous value into, if null a new object will be created.
+     * @return previousValue, or null if there was no entry for the key.
+     * @throws IllegalArgumentException if previousValue is not null and not BytesMarshallable.
+     * @see #putUsing(Object, Object, Object)
+     */
+    V replaceUsing(K key, V value, V previousValue);
+
+    /**
+     * Like {@link #getUsing(Object, Object)} but gives up if the segment for the key can't be locked in time.
+     * In {@link SharedHashMapBuilder#singleWriter(boolean)} mode reads don't lock, so this never gives up.
+     *
+     * @param key       to lookup.
+     * @param value     to reuse if possible. If null, a new object will be created.
+     * @param timeOutNS the longest time to wait for the lock in nano-seconds, or 0 to try once.
+     * @return value found or null if not.
+     * @throws SharedMapBusyException if the segment was locked for the whole time out.
+     */
+    V tryGet(K key, V value, long timeOutNS) throws SharedMapBusyException;
+
+    /**
+     * Like {@link #acquireUsing(Object, Object)} but gives up if the segment for the key can't be locked in time.
+     *
+     * @throws SharedMapBusyException if the segment was locked for the whole time out.
+     * @see #tryGet(Object, Object, long)
+     */
+    V tryAcquireUsing(K key, V value, long timeOutNS) throws SharedMapBusyException;
+
+    /**
+     * Like put() but gives up if the segment for the key can't be locked in time.
+     *
+     * @throws SharedMapBusyException if the segment was locked for the whole time out.
+     * @see #tryGet(Object, Object, long)
+     */
+    V tryPut(K key, V value, long timeOutNS) throws SharedMapBusyException;
+
+    /**
+     * Like remove() but gives up if the segment for the key can't be locked in time.
+     *
+     * @throws SharedMapBusyException if the segment was locked for the whole time out.
+     * @see #tryGet(Object, Object, long)
+     */
+    V tryRemove(K key, long timeOutNS) throws SharedMapBusyException;
+
+    /**
+     * Lock the entry a Byteable value obtained from {@link #getUsing(Object, Object)} or
+     * {@link #acquireUsing(Object, Object)} refers to, so it can be updated in place without locking the segment.
+     * <p></p>
+     * Entry locks only exclude other entry lock holders; they don't guard against the entry being removed or
+     * replaced with put(), so entries updated this way should only be changed in place.  They are not reentrant
+     * with every {@link SharedMapLockStrategy}.
+     *
+     * @param value referring to an entry in this map.
+     * @throws IllegalStateException    if the map wasn't built with {@link SharedHashMapBuilder#entryLocking(boolean)}
+     *                                  or the thread was interrupted.
+     * @throws IllegalArgumentException if the value is not a Byteable referring to an entry in this map.
+     */
+    void lockEntry(V value) throws IllegalStateException;
+
+    /**
+     * Try once to lock the entry a Byteable value refers to.
+     *
+     * @param value referring to an entry in this map.
+     * @return true if the lock was obtained.
+     * @see #lockEntry(Object)
+     */
+    boolean tryLockEntry(V value);
+
+    /**
+     * Unlock an entry locked by this thread with {@link #lockEntry(Object)} or {@link #tryLockEntry(Object)}
+     *
+     * @param value referring to an entry in this map.
+     */
+    void unlockEntry(V value);
+
+    /**
+     * @param key to look up.
+     * @return the version of the entry for the key, or 0 if there is none.
+     * @throws IllegalStateException if the map wasn't built with {@link SharedHashMapBuilder#versionedEntries(boolean)}
+     */
+    long getVersion(K key) throws IllegalStateException;
+
+    /**
+     * Like {@link #getUsing(Object, Object)} but also reads the version of the entry, atomically with the value, so a
+     * value computed from it can be written back with {@link #putIfVersion(Object, Object, long)}.  Calling
+     * getVersion() and then get() could pair a value with the version of a later change.
+     *
+     * @param key     to lookup.
+     * @param value   to reuse if possible. If null, a new object will be created.
+     * @param version an array whose first element is set to the version of the entry, or 0 if there is none.
+     * @return value found or null if not.
+     * @throws IllegalStateException if the map wasn't built with {@link SharedHashMapBuilder#versionedEntries(boolean)}
+     */
+    V getUsing(K key, V value, long[] version) throws IllegalStateException;
+
+    /**
+     * Put a value only if the entry for the key still has the version read earlier with {@link #getVersion(Object)}
+     * or {@link #getUsing(Object, Object, long[])}.
+     *
+     * @param key             to put.
+     * @param value           to put.
+     * @param expectedVersion the version of the entry, or 0 to add the key only if it is absent.
+     * @return true if the value was put, false if the entry has changed.
+     * @throws IllegalStateException if the map wasn't built with {@link SharedHashMapBuilder#versionedEntries(boolean)}
+     */
+    boolean putIfVersion(K key, V value, long expectedVersion) throws IllegalStateException;
+
+    /**
+     * Start a transaction to read and write several keys atomically.
+     *
+     * @return a new transaction for the calling thread to use.
+     * @throws IllegalStateException if the map wasn't built with {@link SharedHashMapBuilder#transactional(boolean)}
+     */
+    SharedMapTransaction<K, V> begin() throws IllegalStateException;
+
+    /**
+     * Check every segment is consistent with the entries it holds and rebuild its index, free list and size if
+     * not, e.g. after a process died while changing the map.  Segments are recovered in parallel, each while
+     * holding its lock, so the map can be in use.  An entry a put() or remove() was part way through adding or
+     * freeing when it died is freed rather than made visible.
+     *
+     * @return the number of inconsistencies found and repaired.
+     * @see SharedHashMapBuilder#recoverOnOpen(boolean)
+     */
+    long recover();
+
+    /**
+     * Fault in the pages of the map, segment by segment using a thread per CPU, so later accesses don't take page
+     * faults.  With {@link SharedHashMapBuilder#preallocate(boolean)}, or for a read only map, each page is only
+     * read, which doesn't dirty pages that would then have to be written back.  Otherwise each page is written with
+     * the value it already has, as reading a hole in a sparse file doesn't allocate its disk block.  Either way this
+     * is safe while the map is in use.
+     *
+     * @param mode how much of the map to fault in.
+     * @return the number of pages touched.
+     * @see SharedHashMapBuilder#pretouch(SharedMapPretouch)
+     */
+    long pretouch(SharedMapPretouch mode);
+
+    /**
+     * Remove every entry, optionally releasing the memory and disk space of the entries.
+     * <p></p>
+     * Releasing memory needs JNA on 64-bit Linux.  It removes the pages with madvise(MADV_REMOVE), which also
+     * punches holes in the file on tmpfs, ext4 and xfs, or else with fallocate(FALLOC_FL_PUNCH_HOLE).  If neither
+     * is supported, the entries are still removed but their memory is not released, and this is logged.  Values
+     * referring to the entries of a cleared map must not be used.
+     *
+     * @param releaseMemory true to release the pages of the entries, false to only reset each segment.
+     */
+    void clear(boolean releaseMemory);
+
+    /**
+     * Move the entries at the end of each segment into the free entries before them, and release the pages after
+     * the last entry as {@link #clear(boolean)} does.  Entries are added to the lowest free entry, so once compacted
+     * a map which is mostly empty only uses the memory at the start of each segment.
+     * <p></p>
+     * Segments are locked for a batch of moves at a time.  Values referring to an entry which was moved, and entry
+     * locks held on it, are no longer valid, so a map of Byteable or generated value types can only be compacted
+     * with {@link #compact(boolean)}.  Locked entries, and those after them, are not moved.
+     *
+     * @return the number of entries moved.
+     * @throws IllegalStateException if the values are Byteable or a generated type.
+     * @see SharedHashMapBuilder#compactIntervalMS(long)
+     */
+    long compact() throws IllegalStateException;
+
+    /**
+     * Like {@link #compact()}, but also compacts a map of Byteable or generated value types if the caller confirms
+     * that no thread, in this process or any other, holds a value from acquireUsing() or getUsing() referring to
+     * an entry of the map.  A value held while its entry is moved silently reads and writes whichever entry is
+     * there next.
+     *
+     * @param byteableValuesReleased true if no Byteable value refers to an entry of the map while it is compacted.
+     * @return the number of entries moved.
+     * @throws IllegalStateException if the values are Byteable or a generated type, and byteableValuesReleased
+     *                               is false.
+     */
+    long compact(boolean byteableValuesReleased) throws IllegalStateException;
+
+    /**
+     * Write back the whole map to its file(s), and wait until it is written, so the changes made so far survive the
+     * machine failing, not just this process.
+     * <p></p>
+     * This uses msync via JNA on 64-bit Linux, or else syncs the whole file.
+     *
+     * @throws IllegalStateException if the map couldn't be written back.
+     * @see SharedHashMapBuilder#syncPolicy(SharedMapSyncPolicy)
+     */
+    void force();
+
+    /**
+     * Write back the segment a key is in, and wait until it is written.  This is much less than the whole map, e.g.
+     * after changing a Byteable value in place.
+     *
+     * @param key of the segment to write back, which needn't be in the map.
+     * @throws IllegalStateException if the segment couldn't be written back.
+     */
+    void force(K key);
+
+    /**
+     * @return the total time in nano-seconds all processes have waited for segment locks which were not free.
+     */
+    long lockWaitNanos();
+
+    /**
+     * @return the number of times any process found a segment lock was not free and had to wait.
+     */
+    long contendedLocks();
+
     /**
      * Obtain the builder settings for this SharedHashMap
      *
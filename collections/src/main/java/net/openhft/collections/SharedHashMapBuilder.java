@@ -22,12 +22,29 @@ import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
 
 public class SharedHashMapBuilder implements Cloneable {
 
     static final int HEADER_SIZE = 128;
     static final int SEGMENT_HEADER = 64;
     private static final byte[] MAGIC = "SharedHM".getBytes();
+    // bits of the flags byte in the header.
+    private static final int ENTRY_LOCKING_FLAG = 1 << 1;
+    private static final int SINGLE_WRITER_FLAG = 1 << 2;
+    private static final int VERSIONED_ENTRIES_FLAG = 1 << 3;
+    // the number of files a map is spread over, and which of them this is.
+    private static final int SHARDS_OFFSET = 28;
+    private static final int SHARD_OFFSET = 32;
+    // 64-bit, the pid namespace of the processes which write to the map, 0 until one opens it.
+    static final int PID_NAMESPACE_OFFSET = 40;
+    // 64-bit, the process id of the single writer, 0 until one changes the map.
+    static final int WRITER_OFFSET = 48;
+    // the size of the lock word at the start of each entry when entry locking is enabled.
+    static final int ENTRY_LOCK_SIZE = 8;
+    static final int ENTRY_VERSION_SIZE = 8;
 
     // used when configuring the number of segments.
     private int minSegments = 128;
@@ -48,6 +65,22 @@ public class SharedHashMapBuilder implements Cloneable {
     private boolean generatedKeyType = false;
     private boolean generatedValueType = false;
     private boolean largeSegments = false;
+    private boolean entryLocking = false;
+    private boolean singleWriter = false;
+    private boolean readOnly = false;
+    private SharedMapLockStrategy lockStrategy = SharedMapLockStrategies.BUSY_SPIN;
+    private SharedMapSegmentSelector segmentSelector = SharedMapSegmentSelectors.FULL_KEY;
+    private boolean recoverOnOpen = false;
+    private SharedMapPretouch pretouch = SharedMapPretouch.NONE;
+    private boolean preallocate = false;
+    // replaced rather than changed, so clones can share them.
+    private Set<SharedMapMemoryAdvice> indexMemoryAdvice = Collections.emptySet();
+    private Set<SharedMapMemoryAdvice> entryMemoryAdvice = Collections.emptySet();
+    private long compactIntervalMS = 0;
+    private SharedMapSyncPolicy syncPolicy = SharedMapSyncPolicy.NONE;
+    private long syncIntervalMS = 1000;
+    private boolean flatCombining = false;
+    private boolean versionedEntries = false;
 
     @Override
     public SharedHashMapBuilder clone() {
@@ -75,13 +108,19 @@ public class SharedHashMapBuilder implements Cloneable {
     }
 
 
+    /**
+     * @param entrySize the bytes for each entry, including the meta data, and the lock word and version if there
+     *                  are any, see {@link #entryLocking(boolean)}.
+     * @return this builder object back
+     */
     public SharedHashMapBuilder entrySize(int entrySize) {
         this.entrySize = entrySize;
         return this;
     }
 
     public int entrySize() {
-        return entrySize;
+        // keep each entry's lock word 8-byte aligned.
+        return entryLocking || versionedEntries ? (entrySize + 7) & ~7 : entrySize;
     }
 
     public SharedHashMapBuilder entries(long entries) {
@@ -138,7 +177,10 @@ public class SharedHashMapBuilder implements Cloneable {
     }
 
     /**
-     * Not supported yet.
+     * Allow {@link SharedHashMap#begin()} to be used.  This adds undo logs for transactions being committed to
+     * the end of the file.  If the process committing died, its writes are rolled back when the map is opened,
+     * or by the next commit in a process which has it open.
+     * It is stored in the file, so a map opened from an existing file uses the setting it was created with.
      */
     public SharedHashMapBuilder transactional(boolean transactional) {
         this.transactional = transactional;
@@ -151,14 +193,57 @@ public class SharedHashMapBuilder implements Cloneable {
 
     public <K, V> SharedHashMap<K, V> create(File file, Class<K> kClass, Class<V> vClass) throws IOException {
         SharedHashMapBuilder builder = clone();
+        openFile(file, builder, 1, 0);
+        return new VanillaSharedHashMap<K, V>(builder, file, kClass, vClass);
+    }
+
+    /**
+     * Create a map with its segments spread over many files, e.g. on different disks, so flushing and paging are
+     * spread over them, and no one file has to hold the whole map.  Segment i is in the file i % files.length, and
+     * the segment of a key is found as for a map in one file.
+     * <p></p>
+     * Each file stores the settings, and its place in the list, so the files must be given in the same order each
+     * time.  {@link SharedHashMap#file()} is the first file.  Once the first file exists, every other file must too,
+     * so a shard which was lost isn't silently replaced with an empty one.
+     *
+     * @param files one for each shard, at most one per segment.
+     * @throws IOException if the first file exists but another is missing or shorter than its shard.
+     */
+    public <K, V> SharedHashMap<K, V> createSharded(File[] files, Class<K> kClass, Class<V> vClass) throws IOException {
+        if (files.length == 0)
+            throw new IllegalArgumentException("At least one file is needed");
+        SharedHashMapBuilder builder = clone();
+        openFile(files[0], builder, files.length, 0);
+        // the first file is sized last, so once it is every other shard has been created.
+        final boolean created = files[0].length() >= VanillaSharedHashMap.sizeInBytes(builder, files.length, 0);
+        if (files.length > builder.actualSegments())
+            throw new IllegalArgumentException("A map of " + builder.actualSegments() + " segments can have at most "
+                    + builder.actualSegments() + " files, was " + files.length);
+        for (int i = 1; i < files.length; i++) {
+            // a shard lost from an existing map would otherwise be created again empty.
+            if (created && files[i].length() < VanillaSharedHashMap.sizeInBytes(builder, files.length, i))
+                throw new IOException("The shard " + files[i] + " of " + files[0] + " is missing or truncated");
+            SharedHashMapBuilder shard = builder.clone();
+            openFile(files[i], shard, files.length, i);
+            if (!shard.equals(builder))
+                throw new IOException("The settings of " + files[i] + " don't match those of " + files[0]);
+        }
+        return new VanillaSharedHashMap<K, V>(builder, files, kClass, vClass);
+    }
 
+    /**
+     * Read the settings of an existing file into builder, or write the settings of this builder to a new file.
+     */
+    private void openFile(File file, SharedHashMapBuilder builder, int shards, int shard) throws IOException {
+        if (readOnly && file.length() == 0)
+            throw new FileNotFoundException("A read only map must exist, " + file + " doesn't");
         for (int i = 0; i < 10; i++) {
             if (file.exists() && file.length() > 0) {
-                readFile(file, builder);
+                readFile(file, builder, shards, shard);
                 break;
             }
             if (file.createNewFile() || file.length() == 0) {
-                newFile(file);
+                newFile(file, shards, shard);
                 break;
             }
             try {
@@ -169,16 +254,38 @@ public class SharedHashMapBuilder implements Cloneable {
         }
         if (builder == null || !file.exists())
             throw new FileNotFoundException("Unable to create " + file);
-        return new VanillaSharedHashMap<K, V>(builder, file, kClass, vClass);
     }
 
-    private static void readFile(File file, SharedHashMapBuilder builder) throws IOException {
+    /**
+     * Create a map in a store of many maps, or open it if the store has a map of that name.  As for a file, a map
+     * opened uses the settings stored when it was created.
+     *
+     * @param store to create the map in.
+     * @param name  of the map in the store.
+     * @see SharedMapStore
+     */
+    public <K, V> SharedHashMap<K, V> create(SharedMapStore store, String name, Class<K> kClass, Class<V> vClass) throws IOException {
+        SharedHashMapBuilder builder = clone();
+        if (readOnly && !store.names().contains(name))
+            throw new FileNotFoundException("A read only map must exist, " + name + " isn't in " + store.file());
+        long offset = store.acquireRegion(name, builder);
+        return new VanillaSharedHashMap<K, V>(builder, store, offset, kClass, vClass);
+    }
+
+    private static void readFile(File file, SharedHashMapBuilder builder, int shards, int shard) throws IOException {
         ByteBuffer bb = ByteBuffer.allocateDirect(HEADER_SIZE).order(ByteOrder.nativeOrder());
         FileInputStream fis = new FileInputStream(file);
         fis.getChannel().read(bb);
         fis.close();
         bb.flip();
-        if (bb.remaining() < 22) throw new IOException("File too small, corrupted? " + file);
+        readHeader(bb, file.toString(), builder, shards, shard);
+    }
+
+    /**
+     * Read the settings stored in the header of a map into builder, checking it is the shard expected.
+     */
+    static void readHeader(ByteBuffer bb, String source, SharedHashMapBuilder builder, int shards, int shard) throws IOException {
+        if (bb.remaining() < 22) throw new IOException("File too small, corrupted? " + source);
         byte[] bytes = new byte[8];
         bb.get(bytes);
         if (!Arrays.equals(bytes, MAGIC))
@@ -189,11 +296,32 @@ public class SharedHashMapBuilder implements Cloneable {
         builder.replicas(bb.getInt());
         builder.transactional(bb.get() == 'Y');
         builder.metaDataBytes(bb.get() & 0xFF);
+        // files written before flags were added don't have this byte, or have it as 0.
+        int flags = bb.remaining() > 0 ? bb.get() & 0xFF : 0;
+        builder.entryLocking((flags & ENTRY_LOCKING_FLAG) != 0);
+        builder.singleWriter((flags & SINGLE_WRITER_FLAG) != 0);
+        builder.versionedEntries((flags & VERSIONED_ENTRIES_FLAG) != 0);
         if (builder.actualSegments() <= 0 || builder.actualEntriesPerSegment() <= 0 || builder.entrySize() <= 0)
-            throw new IOException("Corrupt header for " + file);
+            throw new IOException("Corrupt header for " + source);
+        // files written before sharding was added have 0 for one shard.
+        int fileShards = bb.limit() >= SHARD_OFFSET + 4 ? Math.max(1, bb.getInt(SHARDS_OFFSET)) : 1;
+        int fileShard = bb.limit() >= SHARD_OFFSET + 4 ? bb.getInt(SHARD_OFFSET) : 0;
+        if (fileShards != shards || fileShard != shard)
+            throw new IOException(source + " is file " + (fileShard + 1) + " of " + fileShards
+                    + ", but was opened as " + (shard + 1) + " of " + shards);
+    }
+
+    private void newFile(File file, int shards, int shard) throws IOException {
+        ByteBuffer bb = header(shards, shard);
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.getChannel().write(bb);
+        fos.close();
     }
 
-    private void newFile(File file) throws IOException {
+    /**
+     * @return the header of a new map, with the settings which are stored.
+     */
+    ByteBuffer header(int shards, int shard) {
         ByteBuffer bb = ByteBuffer.allocateDirect(HEADER_SIZE).order(ByteOrder.nativeOrder());
         bb.put(MAGIC);
         bb.putInt(actualSegments());
@@ -202,12 +330,24 @@ public class SharedHashMapBuilder implements Cloneable {
         bb.putInt(replicas());
         bb.put((byte) (transactional ? 'Y' : 'N'));
         bb.put((byte) metaDataBytes);
+        bb.put((byte) ((entryLocking ? ENTRY_LOCKING_FLAG : 0) | (singleWriter ? SINGLE_WRITER_FLAG : 0)
+                | (versionedEntries ? VERSIONED_ENTRIES_FLAG : 0)));
+        bb.putInt(SHARDS_OFFSET, shards);
+        bb.putInt(SHARD_OFFSET, shard);
+        bb.position(SHARD_OFFSET + 4);
         bb.flip();
-        FileOutputStream fos = new FileOutputStream(file);
-        fos.getChannel().write(bb);
-        fos.close();
+        return bb;
     }
 
+    /**
+     * How long to wait for a segment lock before it is reported to the error listener and released.  A lock held by
+     * a process which has died is released sooner, but only if every process writing to the map is in the same pid
+     * namespace, e.g. not in different containers, and JNA is available to check this.  Otherwise a process id
+     * can't be checked and such a lock is only released by this time out.
+     *
+     * @param lockTimeOutMS the longest to wait for a lock, in milliseconds.
+     * @return this builder object back
+     */
     public SharedHashMapBuilder lockTimeOutMS(long lockTimeOutMS) {
         this.lockTimeOutMS = lockTimeOutMS;
         return this;
@@ -312,6 +452,314 @@ public class SharedHashMapBuilder implements Cloneable {
         return metaDataBytes;
     }
 
+    /**
+     * Reserve a lock word at the start of each entry so a Byteable value can be updated in place under
+     * {@link SharedHashMap#lockEntry(Object)} without holding the lock for the whole segment.
+     * <p></p>
+     * The 8-byte lock word is part of the {@link #entrySize(int)}, which is rounded up to a multiple of 8, so allow
+     * 8 bytes more for it, e.g. an entry size of 28 becomes 32 with 24 bytes left for the key and value.  It is
+     * stored in the file, so a map opened from an existing file uses the setting it was created with.
+     *
+     * @param entryLocking true to allow individual entries to be locked.
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder entryLocking(boolean entryLocking) {
+        this.entryLocking = entryLocking;
+        return this;
+    }
+
+    public boolean entryLocking() {
+        return entryLocking;
+    }
+
+    /**
+     * For maps with one writing process and any number of reading processes.
+     * <p></p>
+     * The writer doesn't take the shared segment lock, only a lock within its own process, and makes a per segment
+     * generation counter odd while it changes the segment.  get(), getUsing() and containsKey() don't lock
+     * or write to the map at all, instead they repeat a read if the generation changed while reading.  This
+     * avoids readers contending on the cache line holding the lock.
+     * <p></p>
+     * Only one process may modify the map, including via acquireUsing() and a {@link SharedMapEventListener}
+     * which puts missing values.  It is stored in the file, so every process opening it uses the same mode.
+     * The first process to change the map becomes its writer until it closes the map or exits, and a change by any
+     * other process, including clear(), compact() and recover(), throws an IllegalStateException.
+     *
+     * @param singleWriter true if only one process will ever modify the map.
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder singleWriter(boolean singleWriter) {
+        this.singleWriter = singleWriter;
+        return this;
+    }
+
+    public boolean singleWriter() {
+        return singleWriter;
+    }
+
+    /**
+     * Open an existing map for reading only, mapping the file read only so this process can't change it, and only
+     * needs read permission.  Reads don't lock the segment, as for {@link #singleWriter(boolean)}, but check
+     * the segment's generation, which every writer makes odd while it changes the segment, so reading processes
+     * don't write to the lock's cache line.  A read which can't be checked, as a writer died part way through a
+     * change or didn't finish it within the lock time out, throws an IllegalStateException.
+     * <p></p>
+     * Every method which would change the map throws an UnsupportedOperationException, including acquireUsing()
+     * and the entry locks.  A value from {@link SharedMapEventListener#onGetMissing} is returned but not added.
+     * Recovery on opening is left to the processes which write to the map.  Only this process's view is read only,
+     * so this is not stored in the file.
+     * <p></p>
+     * A map in a {@link SharedMapStore} shares the mapping of the store, which is always read-write, so the file of
+     * the store still needs write permission and only this map's methods are prevented from changing it.
+     *
+     * @param readOnly true to only read the map.
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder readOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+        return this;
+    }
+
+    public boolean readOnly() {
+        return readOnly;
+    }
+
+    /**
+     * How segment and entry locks are acquired.  This is not stored in the file, so every process using a map
+     * must use the same strategy.
+     *
+     * @param lockStrategy to use, {@link SharedMapLockStrategies#BUSY_SPIN} by default.
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder lockStrategy(SharedMapLockStrategy lockStrategy) {
+        this.lockStrategy = lockStrategy;
+        return this;
+    }
+
+    public SharedMapLockStrategy lockStrategy() {
+        return lockStrategy;
+    }
+
+    /**
+     * How the segment for a key is chosen.  With a selector such as {@link SharedMapSegmentSelectors#prefix(int)},
+     * keys in the same partition share a segment, so reading them together only contends on one lock.  Use
+     * enough entries that the segment for the largest partition doesn't fill.
+     * <p></p>
+     * This is not stored in the file, so every process using a map must use the same selector.
+     *
+     * @param segmentSelector to use, {@link SharedMapSegmentSelectors#FULL_KEY} by default.
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder segmentSelector(SharedMapSegmentSelector segmentSelector) {
+        this.segmentSelector = segmentSelector;
+        return this;
+    }
+
+    public SharedMapSegmentSelector segmentSelector() {
+        return segmentSelector;
+    }
+
+    /**
+     * Run {@link SharedHashMap#recover()} when the map is opened, e.g. when restarting after a crash.
+     *
+     * @param recoverOnOpen true to check and repair every segment on opening.
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder recoverOnOpen(boolean recoverOnOpen) {
+        this.recoverOnOpen = recoverOnOpen;
+        return this;
+    }
+
+    public boolean recoverOnOpen() {
+        return recoverOnOpen;
+    }
+
+    /**
+     * Fault in the pages of the map when it is opened, using a thread per CPU, so the first accesses don't take
+     * page faults.  Opening a large map this way can take seconds, and progress is logged.  Without
+     * {@link #preallocate(boolean)} each page is written, to allocate its disk block, which dirties it.
+     *
+     * @param pretouch how much of the map to fault in, {@link SharedMapPretouch#NONE} by default.
+     * @return this builder object back
+     * @see SharedHashMap#pretouch(SharedMapPretouch)
+     */
+    public SharedHashMapBuilder pretouch(SharedMapPretouch pretouch) {
+        this.pretouch = pretouch;
+        return this;
+    }
+
+    public SharedMapPretouch pretouch() {
+        return pretouch;
+    }
+
+    /**
+     * Allocate the disk blocks for the whole file when the map is opened, with fallocate on Linux, or otherwise
+     * by writing zeros past the end of the file and writing each page before it with the value it already has,
+     * which also faults in the whole map.  Otherwise the file is sparse, and the first write to each page
+     * allocates a block, which can stall, or with the disk full, crashes the process with a SIGBUS.
+     *
+     * @param preallocate true to reserve disk space for the whole map on opening.
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder preallocate(boolean preallocate) {
+        this.preallocate = preallocate;
+        return this;
+    }
+
+    public boolean preallocate() {
+        return preallocate;
+    }
+
+    /**
+     * How the memory for the header, index and free lists of each segment should be managed, e.g. LOCK so the
+     * index, which every lookup reads, is never swapped out.  Applied when the map is opened, before any pretouch.
+     * <p></p>
+     * These need the optional JNA dependency on 64-bit Linux, and are logged and ignored if not available.
+     *
+     * @param advice to apply, none by default.
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder indexMemoryAdvice(SharedMapMemoryAdvice... advice) {
+        this.indexMemoryAdvice = adviceSet(advice);
+        return this;
+    }
+
+    public Set<SharedMapMemoryAdvice> indexMemoryAdvice() {
+        return indexMemoryAdvice;
+    }
+
+    /**
+     * How the memory for the entries of each segment should be managed, e.g. RANDOM for a map much larger than
+     * memory, as reading ahead of a lookup rarely helps.
+     *
+     * @param advice to apply, none by default.
+     * @return this builder object back
+     * @see #indexMemoryAdvice(SharedMapMemoryAdvice...)
+     */
+    public SharedHashMapBuilder entryMemoryAdvice(SharedMapMemoryAdvice... advice) {
+        this.entryMemoryAdvice = adviceSet(advice);
+        return this;
+    }
+
+    public Set<SharedMapMemoryAdvice> entryMemoryAdvice() {
+        return entryMemoryAdvice;
+    }
+
+    /**
+     * Compact the map in the background, moving entries into the free entries at the start of each segment and
+     * releasing the pages after them, so a map sized for its peak uses little memory when mostly empty.
+     * <p></p>
+     * Only the process which opened the map with this compacts it, so this is not stored in the file.
+     * <p></p>
+     * Compaction moves entries, so a Byteable value from acquireUsing() or getUsing() would go on referring to
+     * where the entry was, and checking for an entry lock before moving an entry can't stop a thread locking it
+     * just after.  A map with Byteable or generated value types can't be compacted in the background, call
+     * {@link SharedHashMap#compact(boolean)} when no values are held instead.
+     *
+     * @param compactIntervalMS the time between compactions, or 0 to never compact, the default.
+     * @return this builder object back
+     * @see SharedHashMap#compact()
+     */
+    public SharedHashMapBuilder compactIntervalMS(long compactIntervalMS) {
+        this.compactIntervalMS = compactIntervalMS;
+        return this;
+    }
+
+    public long compactIntervalMS() {
+        return compactIntervalMS;
+    }
+
+    /**
+     * Write changes back to the file in the background, rather than leave it to the kernel, which can write back a
+     * large number of dirty pages at once.  {@link SharedMapSyncPolicy#DIRTY_SEGMENTS} only writes back the segments
+     * changed since the last sync, so the changes which can be lost are bounded by the interval without syncing the
+     * whole file each time.  Changes made in place to a Byteable value don't mark the segment, use
+     * {@link SharedHashMap#force(Object)} after them.
+     * <p></p>
+     * Only the process which opened the map with this syncs it, so this is not stored in the file.  Other processes
+     * only mark the segments they change if they use DIRTY_SEGMENTS too.
+     *
+     * @param syncPolicy how to write back changes, NONE by default.
+     * @return this builder object back
+     * @see SharedHashMap#force()
+     */
+    public SharedHashMapBuilder syncPolicy(SharedMapSyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+        return this;
+    }
+
+    public SharedMapSyncPolicy syncPolicy() {
+        return syncPolicy;
+    }
+
+    /**
+     * @param syncIntervalMS the time between syncs for the {@link #syncPolicy(SharedMapSyncPolicy)}, 1000 by default.
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder syncIntervalMS(long syncIntervalMS) {
+        if (syncIntervalMS <= 0)
+            throw new IllegalArgumentException("syncIntervalMS must be positive, was " + syncIntervalMS);
+        this.syncIntervalMS = syncIntervalMS;
+        return this;
+    }
+
+    public long syncIntervalMS() {
+        return syncIntervalMS;
+    }
+
+    private static Set<SharedMapMemoryAdvice> adviceSet(SharedMapMemoryAdvice... advice) {
+        Set<SharedMapMemoryAdvice> set = EnumSet.noneOf(SharedMapMemoryAdvice.class);
+        Collections.addAll(set, advice);
+        return Collections.unmodifiableSet(set);
+    }
+
+    /**
+     * Combine writes to a hot segment.  A thread publishes its put(), remove() or replace() in a slot of the
+     * segment, and whichever thread gets the lock performs every write waiting before releasing it.  This turns
+     * many hand offs of the lock into one, and keeps the segment in one core's cache while it is written.
+     * <p></p>
+     * Only writes from threads in the same process are combined, so this is not stored in the file.
+     *
+     * @param flatCombining true to combine writes from many threads.
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder flatCombining(boolean flatCombining) {
+        this.flatCombining = flatCombining;
+        return this;
+    }
+
+    public boolean flatCombining() {
+        return flatCombining;
+    }
+
+    /**
+     * Give each entry a 64-bit version, which changes whenever the entry is added or its value is replaced, so a
+     * read-compute-write cycle can read with {@link SharedHashMap#getUsing(Object, Object, long[])} and write with
+     * {@link SharedHashMap#putIfVersion(Object, Object, long)} instead of holding a lock or comparing values.  Versions come from a counter per segment, so they only increase, even after a
+     * key is removed and added again.  Changes made in place to a Byteable value don't change the version.
+     * <p></p>
+     * The 8-byte version is part of the {@link #entrySize(int)}, which is rounded up to a multiple of 8, so allow
+     * 8 bytes more for it, as for the lock word of {@link #entryLocking(boolean)}.  It is stored in the file.
+     *
+     * @param versionedEntries true to keep a version for each entry.
+     * @return this builder object back
+     */
+    public SharedHashMapBuilder versionedEntries(boolean versionedEntries) {
+        this.versionedEntries = versionedEntries;
+        return this;
+    }
+
+    public boolean versionedEntries() {
+        return versionedEntries;
+    }
+
+    /**
+     * @return the bytes before the meta data of each entry; the lock word, then the version.
+     */
+    int entryHeaderBytes() {
+        return (entryLocking ? ENTRY_LOCK_SIZE : 0) + (versionedEntries ? ENTRY_VERSION_SIZE : 0);
+    }
+
     public SharedHashMapBuilder eventListener(SharedMapEventListener eventListener) {
         this.eventListener = eventListener;
         return this;
@@ -340,6 +788,21 @@ public class SharedHashMapBuilder implements Cloneable {
                 ", largeSegments=" + largeSegments() +
                 ", metaDataBytes=" + metaDataBytes() +
                 ", eventListener=" + eventListener() +
+                ", entryLocking=" + entryLocking() +
+                ", singleWriter=" + singleWriter() +
+                ", readOnly=" + readOnly() +
+                ", lockStrategy=" + lockStrategy() +
+                ", segmentSelector=" + segmentSelector() +
+                ", recoverOnOpen=" + recoverOnOpen() +
+                ", pretouch=" + pretouch() +
+                ", preallocate=" + preallocate() +
+                ", indexMemoryAdvice=" + indexMemoryAdvice() +
+                ", entryMemoryAdvice=" + entryMemoryAdvice() +
+                ", compactIntervalMS=" + compactIntervalMS() +
+                ", syncPolicy=" + syncPolicy() +
+                ", syncIntervalMS=" + syncIntervalMS() +
+                ", flatCombining=" + flatCombining() +
+                ", versionedEntries=" + versionedEntries() +
                 '}';
     }
 
@@ -363,6 +826,21 @@ public class SharedHashMapBuilder implements Cloneable {
         if (replicas() != that.replicas()) return false;
         if (transactional() != that.transactional()) return false;
         if (metaDataBytes() != that.metaDataBytes()) return false;
+        if (entryLocking() != that.entryLocking()) return false;
+        if (singleWriter() != that.singleWriter()) return false;
+        if (readOnly() != that.readOnly()) return false;
+        if (!lockStrategy().equals(that.lockStrategy())) return false;
+        if (!segmentSelector().equals(that.segmentSelector())) return false;
+        if (recoverOnOpen() != that.recoverOnOpen()) return false;
+        if (pretouch() != that.pretouch()) return false;
+        if (preallocate() != that.preallocate()) return false;
+        if (!indexMemoryAdvice().equals(that.indexMemoryAdvice())) return false;
+        if (!entryMemoryAdvice().equals(that.entryMemoryAdvice())) return false;
+        if (compactIntervalMS() != that.compactIntervalMS()) return false;
+        if (syncPolicy() != that.syncPolicy()) return false;
+        if (syncIntervalMS() != that.syncIntervalMS()) return false;
+        if (flatCombining() != that.flatCombining()) return false;
+        if (versionedEntries() != that.versionedEntries()) return false;
         return errorListener().equals(that.errorListener());
 
     }
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+/**
+ * Thrown by the try methods of {@link SharedHashMap} when the segment for a key couldn't be locked within the time
+ * allowed.  A single instance without a stack trace is thrown so a busy map doesn't create garbage.
+ */
+public class SharedMapBusyException extends RuntimeException {
+    private static final long serialVersionUID = 0L;
+
+    static final SharedMapBusyException BUSY = new SharedMapBusyException();
+
+    private SharedMapBusyException() {
+        super("The segment for the key is locked by another thread or process");
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.Jvm;
+import net.openhft.lang.io.Bytes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+public enum SharedMapLockStrategies implements SharedMapLockStrategy {
+    /**
+     * The lock from OpenHFT lang, which busy waits for the whole time out.  Lowest latency when lightly contended,
+     * but every waiter uses a whole CPU.
+     */
+    BUSY_SPIN {
+        @Override
+        public boolean tryLock(Bytes bytes, long offset) {
+            return bytes.tryLockLong(offset);
+        }
+
+        @Override
+        public boolean tryLock(Bytes bytes, long offset, long timeOutNS) {
+            return bytes.tryLockNanosLong(offset, timeOutNS);
+        }
+
+        @Override
+        public void cancelWait(Bytes bytes, long offset) {
+            // waiters don't queue.
+        }
+
+        @Override
+        public void unlock(Bytes bytes, long offset) throws IllegalMonitorStateException {
+            bytes.unlockLong(offset);
+        }
+
+        @Override
+        public void forceUnlock(Bytes bytes, long offset) {
+            bytes.resetLockLong(offset);
+        }
+
+        @Override
+        public boolean forceUnlock(Bytes bytes, long offset, long lockHolder) {
+            long word = bytes.readVolatileLong(offset);
+            return bytes.threadIdForLockLong(offset) == lockHolder
+                    && bytes.compareAndSwapLong(offset, word, 0L);
+        }
+
+        @Override
+        public long lockHolder(Bytes bytes, long offset) {
+            return bytes.threadIdForLockLong(offset);
+        }
+
+        @Override
+        public int processIdOf(long lockHolder) {
+            // not recorded in a way which can be relied on.
+            return 0;
+        }
+    },
+    /**
+     * Spins briefly, then yields, then parks with an increasing back off so waiters give up the CPU to the lock
+     * holder.  Parking rather than spinning also lets virtual threads unmount.
+     * <p></p>
+     * The lock word holds the process id in the high 32 bits and the thread id in the low 32 bits.
+     */
+    ADAPTIVE {
+        @Override
+        public boolean tryLock(Bytes bytes, long offset) {
+            return tryLock0(bytes, offset, lockId());
+        }
+
+        @Override
+        public boolean tryLock(Bytes bytes, long offset, long timeOutNS) {
+            final long id = lockId();
+            for (int i = 0; i < SPINS; i++)
+                if (tryLock0(bytes, offset, id))
+                    return true;
+            for (int i = 0; i < YIELDS; i++) {
+                Thread.yield();
+                if (tryLock0(bytes, offset, id))
+                    return true;
+            }
+            final long start = System.nanoTime();
+            long parkNS = MIN_PARK_NS;
+            while (System.nanoTime() - start < timeOutNS) {
+                LockSupport.parkNanos(parkNS);
+                if (tryLock0(bytes, offset, id))
+                    return true;
+                if (Thread.currentThread().isInterrupted())
+                    return false;
+                parkNS = Math.min(parkNS * 2, MAX_PARK_NS);
+            }
+            return false;
+        }
+
+        @Override
+        public void cancelWait(Bytes bytes, long offset) {
+            // waiters don't queue.
+        }
+
+        @Override
+        public void unlock(Bytes bytes, long offset) throws IllegalMonitorStateException {
+            final long id = lockId();
+            if (!bytes.compareAndSwapLong(offset, id, 0L))
+                throw new IllegalMonitorStateException("Lock held by " + lockHolderToString(bytes.readVolatileLong(offset))
+                        + " not " + lockHolderToString(id));
+        }
+
+        @Override
+        public void forceUnlock(Bytes bytes, long offset) {
+            bytes.writeOrderedLong(offset, 0L);
+        }
+
+        @Override
+        public boolean forceUnlock(Bytes bytes, long offset, long lockHolder) {
+            return lockHolder != 0L && bytes.compareAndSwapLong(offset, lockHolder, 0L);
+        }
+
+        @Override
+        public long lockHolder(Bytes bytes, long offset) {
+            return bytes.readVolatileLong(offset);
+        }
+
+        @Override
+        public int processIdOf(long lockHolder) {
+            return (int) (lockHolder >>> 32);
+        }
+    },
+    /**
+     * A fair ticket lock, so the lock is granted in the order it was asked for and no waiter can be overtaken
+     * repeatedly.  This bounds the worst case wait at the cost of some throughput under contention.
+     * <p></p>
+     * The lock word holds the next ticket in the top 16 bits, the ticket being served in the next 16 bits and
+     * the process id of the holder in the low 32 bits.  A thread which times out keeps its ticket and waits on
+     * it again on its next attempt for the same lock, and can hold a ticket for many locks at once.  The turn of a
+     * ticket given up by {@link #cancelWait(Bytes, long)}, or held by a thread which has died, is skipped by the
+     * waiters in the same process after it.  A turn which isn't taken and can't be known to be abandoned, e.g. of a
+     * waiter in another process which gave up, is only skipped when the lock times out, and a thread whose turn
+     * was skipped queues again.
+     */
+    TICKET {
+        @Override
+        public boolean tryLock(Bytes bytes, long offset) {
+            PendingTicket pending = pendingTicket(bytes, offset);
+            if (pending != null)
+                return pending.tryTakeTurn();
+            while (true) {
+                long word = bytes.readVolatileLong(offset);
+                int next = nextTicket(word);
+                if (next != nowServing(word))
+                    return false;
+                if (bytes.compareAndSwapLong(offset, word, ticketWord(next + 1, next, PROCESS_ID32)))
+                    return true;
+            }
+        }
+
+        @Override
+        public boolean tryLock(Bytes bytes, long offset, long timeOutNS) {
+            PendingTicket pending = pendingTicket(bytes, offset);
+            if (pending == null)
+                pending = PendingTicket.take(bytes, offset);
+            // the ticket is only kept on a time out, so it doesn't outlive a wait given up any other way.
+            boolean keep = false;
+            try {
+                final long start = System.nanoTime();
+                int spins = 0;
+                do {
+                    if (pending.tryTakeTurn()) {
+                        keep = true;
+                        return true;
+                    }
+                    pending.skipAbandonedTurn();
+                    if (++spins > SPINS) {
+                        if (Thread.currentThread().isInterrupted())
+                            return false;
+                        Thread.yield();
+                    }
+                } while (System.nanoTime() - start < timeOutNS);
+                keep = true;
+                return false;
+            } finally {
+                if (!keep)
+                    pending.cancel();
+            }
+        }
+
+        @Override
+        public void cancelWait(Bytes bytes, long offset) {
+            PendingTicket pending = pendingTicket(bytes, offset);
+            if (pending != null)
+                pending.cancel();
+        }
+
+        @Override
+        public void unlock(Bytes bytes, long offset) throws IllegalMonitorStateException {
+            while (true) {
+                long word = bytes.readVolatileLong(offset);
+                int serving = nowServing(word);
+                if (nextTicket(word) == serving || (int) word != PROCESS_ID32)
+                    throw new IllegalMonitorStateException("Lock held by processId: " + (word & 0xFFFFFFFFL)
+                            + " not " + PROCESS_ID32);
+                if (bytes.compareAndSwapLong(offset, word, ticketWord(nextTicket(word), serving + 1, 0)))
+                    return;
+            }
+        }
+
+        @Override
+        public void forceUnlock(Bytes bytes, long offset) {
+            while (true) {
+                long word = bytes.readVolatileLong(offset);
+                int serving = nowServing(word);
+                if (nextTicket(word) == serving)
+                    return;
+                if (bytes.compareAndSwapLong(offset, word, ticketWord(nextTicket(word), serving + 1, 0)))
+                    return;
+            }
+        }
+
+        @Override
+        public boolean forceUnlock(Bytes bytes, long offset, long lockHolder) {
+            while (true) {
+                long word = bytes.readVolatileLong(offset);
+                int serving = nowServing(word);
+                if (nextTicket(word) == serving || word << 32 != lockHolder)
+                    return false;
+                if (bytes.compareAndSwapLong(offset, word, ticketWord(nextTicket(word), serving + 1, 0)))
+                    return true;
+            }
+        }
+
+        @Override
+        public long lockHolder(Bytes bytes, long offset) {
+            // the process id in the same place as for ADAPTIVE, the thread is not known.
+            return bytes.readVolatileLong(offset) << 32;
+        }
+
+        @Override
+        public int processIdOf(long lockHolder) {
+            return (int) (lockHolder >>> 32);
+        }
+    };
+
+    static final int SPINS = 100;
+    static final int YIELDS = 10;
+    static final long MIN_PARK_NS = 1000;
+    static final long MAX_PARK_NS = 1000 * 1000;
+    private static final int PROCESS_ID32 = Jvm.getProcessId();
+    private static final long PROCESS_ID = ((long) PROCESS_ID32) << 32;
+    private static final ThreadLocal<List<PendingTicket>> PENDING_TICKETS = new ThreadLocal<List<PendingTicket>>() {
+        @Override
+        protected List<PendingTicket> initialValue() {
+            return new ArrayList<PendingTicket>();
+        }
+    };
+    /**
+     * The TICKET tickets taken in this process and not yet served, including those given up, so a waiter can tell
+     * whether the turn before it was abandoned.
+     */
+    private static final Set<PendingTicket> QUEUED_TICKETS =
+            Collections.newSetFromMap(new ConcurrentHashMap<PendingTicket, Boolean>());
+
+    /**
+     * @return the process id in the high 32 bits and the thread id in the low 32 bits, never 0.
+     */
+    static long lockId() {
+        return PROCESS_ID | (Thread.currentThread().getId() & 0xFFFFFFFFL);
+    }
+
+    static String lockHolderToString(long lockId) {
+        return "processId: " + (lockId >>> 32) + ", threadId: " + (lockId & 0xFFFFFFFFL);
+    }
+
+    static int nextTicket(long word) {
+        return (int) (word >>> 48);
+    }
+
+    static int nowServing(long word) {
+        return (int) (word >>> 32) & 0xFFFF;
+    }
+
+    static long ticketWord(int next, int serving, int processId) {
+        return ((long) (next & 0xFFFF) << 48) | ((long) (serving & 0xFFFF) << 32) | (processId & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return the ticket the current thread is waiting on for a lock, or null if it isn't waiting.
+     */
+    static PendingTicket pendingTicket(Bytes bytes, long offset) {
+        for (PendingTicket pending : PENDING_TICKETS.get())
+            if (pending.bytes == bytes && pending.offset == offset)
+                return pending;
+        return null;
+    }
+
+    /**
+     * A ticket a thread is waiting on, kept if it times out so it doesn't lose its place in the queue.
+     */
+    static final class PendingTicket {
+        final Bytes bytes;
+        final long offset;
+        final Thread owner = Thread.currentThread();
+        private volatile int ticket;
+        private volatile boolean cancelled = false;
+
+        private PendingTicket(Bytes bytes, long offset) {
+            this.bytes = bytes;
+            this.offset = offset;
+        }
+
+        static PendingTicket take(Bytes bytes, long offset) {
+            PendingTicket pending = new PendingTicket(bytes, offset);
+            pending.takeTicket();
+            PENDING_TICKETS.get().add(pending);
+            QUEUED_TICKETS.add(pending);
+            return pending;
+        }
+
+        boolean abandoned() {
+            return cancelled || !owner.isAlive();
+        }
+
+        private void takeTicket() {
+            while (true) {
+                long word = bytes.readVolatileLong(offset);
+                int next = nextTicket(word);
+                if (bytes.compareAndSwapLong(offset, word, ticketWord(next + 1, nowServing(word), (int) word))) {
+                    this.ticket = next;
+                    return;
+                }
+            }
+        }
+
+        boolean tryTakeTurn() {
+            while (true) {
+                long word = bytes.readVolatileLong(offset);
+                int serving = nowServing(word);
+                if (serving != ticket) {
+                    // our ticket was skipped by a forced unlock, or as abandoned, queue again.
+                    if ((short) (ticket - serving) < 0)
+                        takeTicket();
+                    return false;
+                }
+                if (bytes.compareAndSwapLong(offset, word, ticketWord(nextTicket(word), serving, PROCESS_ID32))) {
+                    PENDING_TICKETS.get().remove(this);
+                    QUEUED_TICKETS.remove(this);
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Withdraw the ticket if it is the last one, or hand on the turn if it has come, otherwise leave it to be
+         * skipped by the waiters after it.
+         */
+        void cancel() {
+            PENDING_TICKETS.get().remove(this);
+            cancelled = true;
+            while (true) {
+                long word = bytes.readVolatileLong(offset);
+                int next = nextTicket(word);
+                int serving = nowServing(word);
+                long update;
+                if ((short) (ticket - serving) < 0)
+                    break;
+                if (((next - 1) & 0xFFFF) == ticket)
+                    update = ticketWord(ticket, serving, (int) word);
+                else if (serving == ticket)
+                    update = ticketWord(next, serving + 1, 0);
+                else
+                    return;
+                if (bytes.compareAndSwapLong(offset, word, update))
+                    break;
+            }
+            QUEUED_TICKETS.remove(this);
+        }
+
+        /**
+         * Skip the turn being served if no one has taken it and its ticket is known to be abandoned, i.e. it was
+         * taken in this process by a thread which gave it up or has died.
+         */
+        void skipAbandonedTurn() {
+            long word = bytes.readVolatileLong(offset);
+            int serving = nowServing(word);
+            if ((int) word != 0 || serving == nextTicket(word) || serving == ticket)
+                // held, free or our turn.
+                return;
+            for (PendingTicket queued : QUEUED_TICKETS) {
+                if (queued.bytes != bytes || queued.offset != offset || !queued.abandoned())
+                    continue;
+                int behind = (short) (queued.ticket - serving);
+                if (behind == 0 && !bytes.compareAndSwapLong(offset, word, ticketWord(nextTicket(word), serving + 1, 0)))
+                    return;
+                // skipped, or passed by a forced unlock.
+                if (behind <= 0)
+                    QUEUED_TICKETS.remove(queued);
+            }
+        }
+    }
+
+    static boolean tryLock0(Bytes bytes, long offset, long id) {
+        return bytes.readVolatileLong(offset) == 0L
+                && bytes.compareAndSwapLong(offset, 0L, id);
+    }
+}
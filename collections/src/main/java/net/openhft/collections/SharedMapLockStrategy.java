@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+
+/**
+ * How a 64-bit lock word in the map is acquired and released, e.g. the lock for each segment.
+ * <p></p>
+ * The lock word is shared by every process using the map, so they must all use the same strategy.  Strategies need
+ * not be reentrant, the map tracks the locks a thread already holds.
+ */
+public interface SharedMapLockStrategy {
+    /**
+     * Try once to acquire the lock, without waiting.
+     *
+     * @param bytes  holding the lock word
+     * @param offset of the lock word
+     * @return true if acquired
+     */
+    boolean tryLock(Bytes bytes, long offset);
+
+    /**
+     * Wait up to a time out to acquire the lock.
+     *
+     * @param bytes     holding the lock word
+     * @param offset    of the lock word
+     * @param timeOutNS the longest time to wait in nano-seconds.
+     * @return true if acquired, false if the time out was reached or the thread was interrupted.
+     */
+    boolean tryLock(Bytes bytes, long offset, long timeOutNS);
+
+    /**
+     * Give up waiting for a lock after {@link #tryLock(Bytes, long, long)} returned false, when the caller won't
+     * try again, e.g. a try operation which timed out.  A strategy which queues waiters withdraws the place the
+     * thread kept, so no other waiter has to wait for its turn to pass.
+     *
+     * @param bytes  holding the lock word
+     * @param offset of the lock word
+     */
+    void cancelWait(Bytes bytes, long offset);
+
+    /**
+     * Release a lock held by the current thread.
+     *
+     * @param bytes  holding the lock word
+     * @param offset of the lock word
+     * @throws IllegalMonitorStateException if the current thread doesn't hold the lock.
+     */
+    void unlock(Bytes bytes, long offset) throws IllegalMonitorStateException;
+
+    /**
+     * Release the lock whoever holds it, e.g. after a time out because the holder appears to have died.
+     *
+     * @param bytes  holding the lock word
+     * @param offset of the lock word
+     */
+    void forceUnlock(Bytes bytes, long offset);
+
+    /**
+     * Release the lock only if it is still held by the holder given, e.g. one found to be dead.
+     *
+     * @param bytes      holding the lock word
+     * @param offset     of the lock word
+     * @param lockHolder as returned by {@link #lockHolder(Bytes, long)}
+     * @return true if the lock was released.
+     */
+    boolean forceUnlock(Bytes bytes, long offset, long lockHolder);
+
+    /**
+     * @param bytes  holding the lock word
+     * @param offset of the lock word
+     * @return an id for the holder of the lock as passed to {@link SharedMapErrorListener#onLockTimeout(long)}
+     */
+    long lockHolder(Bytes bytes, long offset);
+
+    /**
+     * @param lockHolder as returned by {@link #lockHolder(Bytes, long)}
+     * @return the process id of the holder, or 0 if not locked or this strategy doesn't record it.
+     */
+    int processIdOf(long lockHolder);
+}
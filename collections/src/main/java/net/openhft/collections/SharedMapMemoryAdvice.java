@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+/**
+ * How the memory for a region of a map should be managed, see
+ * {@link SharedHashMapBuilder#indexMemoryAdvice(SharedMapMemoryAdvice...)}.  These need JNA on 64-bit Linux and
+ * are ignored otherwise.
+ */
+public enum SharedMapMemoryAdvice {
+    /**
+     * Expect random access, so the kernel doesn't read ahead around a page fault.
+     */
+    RANDOM(1),
+    /**
+     * Expect sequential access, so the kernel reads ahead aggressively.
+     */
+    SEQUENTIAL(2),
+    /**
+     * Read the pages in ahead of their use.
+     */
+    WILLNEED(3),
+    /**
+     * Use transparent huge pages to reduce TLB misses.  Linux only supports these for files in tmpfs,
+     * e.g. /dev/shm, and only if enabled for shared memory.
+     */
+    HUGEPAGE(14),
+    /**
+     * Lock the pages in memory so they are never swapped out, within the RLIMIT_MEMLOCK of the process.
+     */
+    LOCK(-1);
+
+    private final int madvise;
+
+    SharedMapMemoryAdvice(int madvise) {
+        this.madvise = madvise;
+    }
+
+    /**
+     * @return true if the advice was applied to the region.
+     */
+    boolean apply(long address, long length) {
+        return this == LOCK
+                ? NativeMemory.mlock(address, length, VanillaSharedHashMap.PAGE_SIZE)
+                : NativeMemory.madvise(address, length, madvise, VanillaSharedHashMap.PAGE_SIZE);
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+/**
+ * How much of a map to fault in when it is opened, see {@link SharedHashMapBuilder#pretouch(SharedMapPretouch)}
+ */
+public enum SharedMapPretouch {
+    /**
+     * Fault in pages as they are first used.
+     */
+    NONE,
+    /**
+     * Fault in the header, index and free list of every segment, but leave the entries to be faulted in as used.
+     */
+    INDEX,
+    /**
+     * Fault in the whole map, including every entry.  This uses as much memory as the size of the file.
+     */
+    ALL
+}
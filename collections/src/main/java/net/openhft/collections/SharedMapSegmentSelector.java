@@ -0,0 +1,34 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+
+/**
+ * Chooses the segment for a key, e.g. so related keys share a segment and can be read together under one lock.
+ * <p></p>
+ * A segment must be chosen from the marshalled key alone, as the map uses it to recover entries.  Every process
+ * using a map must use the same selector, and a segment must have room for every key it is given.
+ */
+public interface SharedMapSegmentSelector {
+    /**
+     * @param keyBytes the marshalled key, from 0 to its limit.
+     * @param keyHash  the hash of the whole key.
+     * @return a hash whose low bits choose the segment.
+     */
+    long partitionHash(Bytes keyBytes, long keyHash);
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+
+public enum SharedMapSegmentSelectors implements SharedMapSegmentSelector {
+    /**
+     * Spread keys across segments by the hash of the whole key.
+     */
+    FULL_KEY {
+        @Override
+        public long partitionHash(Bytes keyBytes, long keyHash) {
+            return keyHash;
+        }
+    };
+
+    /**
+     * Keys with the same leading bytes when marshalled share a segment, e.g. a generated key type with the
+     * partition as its first field.
+     *
+     * @param length the number of bytes which identify the partition.
+     * @return a selector hashing only the first length bytes of a key.
+     */
+    public static SharedMapSegmentSelector prefix(int length) {
+        return new PrefixSegmentSelector(false, length);
+    }
+
+    /**
+     * Strings and other CharSequences with the same leading characters share a segment.  This skips the length
+     * written before the characters, so it is only suitable for keys marshalled that way.
+     *
+     * @param length the number of bytes of text which identify the partition, one per ASCII character.
+     * @return a selector hashing only the start of the text of a key.
+     */
+    public static SharedMapSegmentSelector textPrefix(int length) {
+        return new PrefixSegmentSelector(true, length);
+    }
+
+    static final class PrefixSegmentSelector implements SharedMapSegmentSelector {
+        private final boolean skipLength;
+        private final int length;
+
+        PrefixSegmentSelector(boolean skipLength, int length) {
+            if (length <= 0)
+                throw new IllegalArgumentException("length must be positive, was " + length);
+            this.skipLength = skipLength;
+            this.length = length;
+        }
+
+        @Override
+        public long partitionHash(Bytes keyBytes, long keyHash) {
+            long start = 0;
+            if (skipLength) {
+                // stop bit encoded, the top bit is set on all but the last byte.
+                while (start < keyBytes.limit() && (keyBytes.readByte(start++) & 0x80) != 0) {
+                }
+            }
+            return VanillaSharedHashMap.Hasher.hash(keyBytes, start, Math.min(keyBytes.limit(), start + length));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PrefixSegmentSelector)) return false;
+            PrefixSegmentSelector that = (PrefixSegmentSelector) o;
+            return skipLength == that.skipLength && length == that.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * length + (skipLength ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            return (skipLength ? "textPrefix(" : "prefix(") + length + ")";
+        }
+    }
+}
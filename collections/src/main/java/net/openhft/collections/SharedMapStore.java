@@ -0,0 +1,279 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.MappedStore;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A file holding many maps, each in its own region of one mapping, and found by name in a directory at the start
+ * of the file.  This saves a file descriptor and a mapping per map, which adds up for hundreds of small maps.
+ * <p></p>
+ * Each map has its own settings, stored in the header of its region as for a map in its own file.  Maps are
+ * created with {@link SharedHashMapBuilder#create(SharedMapStore, String, Class, Class)} and can't be removed.
+ * The file is sparse, so the capacity only reserves address space and disk blocks are only used as maps are.
+ * <p></p>
+ * Closing a map doesn't unmap its region, and maps must not be used once the store is closed.
+ */
+public class SharedMapStore implements Closeable {
+    static final int DEFAULT_MAX_MAPS = 1024;
+    static final int MAX_NAME_LENGTH = 46;
+    private static final byte[] MAGIC = "SharedMS".getBytes();
+    /*
+    The header is
+    - the magic number
+    - the maximum number of maps, 32-bit
+    - the number of maps, 32-bit
+    - the capacity, 64-bit
+    - the offset of the next map, 64-bit
+     */
+    private static final int HEADER_SIZE = 64;
+    private static final int MAX_MAPS_OFFSET = 8;
+    private static final int COUNT_OFFSET = 12;
+    private static final int CAPACITY_OFFSET = 16;
+    private static final int NEXT_OFFSET_OFFSET = 24;
+    /*
+    Each directory entry is
+    - the length of the name, 16-bit
+    - the name in UTF-8
+    - the offset of the map, 64-bit
+    - the size of the map, 64-bit
+     */
+    private static final int ENTRY_SIZE = 64;
+    private static final int ENTRY_OFFSET_OFFSET = 48;
+    private static final int ENTRY_SIZE_OFFSET = 56;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel fc;
+    private final int maxMaps;
+    private final long capacity;
+    private MappedStore ms; // non-final for close()
+
+    /**
+     * Open a store, or create it with room for up to 1024 maps.
+     *
+     * @param capacity the size of the store, if created, limiting the total size of its maps.
+     */
+    public static SharedMapStore open(File file, long capacity) throws IOException {
+        return open(file, capacity, DEFAULT_MAX_MAPS);
+    }
+
+    /**
+     * Open a store, or create it.  An existing store keeps the capacity and maximum maps it was created with.
+     *
+     * @param capacity the size of the store, if created, limiting the total size of its maps.
+     * @param maxMaps  the number of maps it has room for, if created.
+     */
+    public static SharedMapStore open(File file, long capacity, int maxMaps) throws IOException {
+        if (maxMaps <= 0)
+            throw new IllegalArgumentException("maxMaps must be positive, was " + maxMaps);
+        return new SharedMapStore(file, capacity, maxMaps);
+    }
+
+    private SharedMapStore(File file, long capacity, int maxMaps) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        boolean opened = false;
+        try {
+            this.fc = raf.getChannel();
+            ByteBuffer header;
+            FileLock lock = fc.lock();
+            try {
+                if (fc.size() == 0) {
+                    header = newBuffer(HEADER_SIZE);
+                    header.put(MAGIC);
+                    header.putInt(MAX_MAPS_OFFSET, maxMaps);
+                    header.putInt(COUNT_OFFSET, 0);
+                    header.putLong(CAPACITY_OFFSET, capacity);
+                    header.putLong(NEXT_OFFSET_OFFSET, dataOffset(maxMaps));
+                    writeAt(header, 0);
+                } else {
+                    header = readAt(newBuffer(HEADER_SIZE), 0);
+                }
+            } finally {
+                lock.release();
+            }
+            byte[] magic = new byte[MAGIC.length];
+            header.position(0);
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException("Unknown magic number, was " + new String(magic, "ISO-8859-1"));
+            this.maxMaps = header.getInt(MAX_MAPS_OFFSET);
+            this.capacity = header.getLong(CAPACITY_OFFSET);
+            if (this.maxMaps <= 0 || this.capacity < dataOffset(this.maxMaps))
+                throw new IOException("Corrupt header for " + file);
+            this.ms = new MappedStore(file, FileChannel.MapMode.READ_WRITE, this.capacity);
+            opened = true;
+        } finally {
+            if (!opened)
+                raf.close();
+        }
+    }
+
+    /**
+     * @return the offset of the first map, after the directory.
+     */
+    private static long dataOffset(int maxMaps) {
+        long end = HEADER_SIZE + (long) maxMaps * ENTRY_SIZE;
+        return (end + VanillaSharedHashMap.PAGE_SIZE - 1) & -VanillaSharedHashMap.PAGE_SIZE;
+    }
+
+    private static ByteBuffer newBuffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+    }
+
+    private ByteBuffer readAt(ByteBuffer bb, long position) throws IOException {
+        bb.clear();
+        while (bb.hasRemaining()) {
+            if (fc.read(bb, position + bb.position()) < 0)
+                throw new EOFException("Unable to read " + file + " at " + position);
+        }
+        bb.flip();
+        return bb;
+    }
+
+    private void writeAt(ByteBuffer bb, long position) throws IOException {
+        bb.position(0);
+        while (bb.hasRemaining())
+            fc.write(bb, position + bb.position());
+    }
+
+    /**
+     * Find the region of a map, or add one sized for the settings of the builder.  The settings of a map found are
+     * read into the builder.  Holds a file lock so processes adding maps at once don't add the same name twice.
+     *
+     * @return the offset of the map in the store.
+     */
+    synchronized long acquireRegion(String name, SharedHashMapBuilder builder) throws IOException {
+        final byte[] nameBytes = name.getBytes("UTF-8");
+        if (nameBytes.length == 0 || nameBytes.length > MAX_NAME_LENGTH)
+            throw new IllegalArgumentException("The name must be 1 to " + MAX_NAME_LENGTH + " bytes in UTF-8, was " + name);
+        FileLock lock = fc.lock();
+        try {
+            ByteBuffer header = readAt(newBuffer(HEADER_SIZE), 0);
+            final int count = header.getInt(COUNT_OFFSET);
+            ByteBuffer entry = newBuffer(ENTRY_SIZE);
+            for (int i = 0; i < count; i++) {
+                readAt(entry, entryOffset(i));
+                if (Arrays.equals(nameBytes, name(entry))) {
+                    final long offset = entry.getLong(ENTRY_OFFSET_OFFSET);
+                    ByteBuffer mapHeader = ByteBuffer.allocate(SharedHashMapBuilder.HEADER_SIZE).order(ByteOrder.nativeOrder());
+                    SharedHashMapBuilder.readHeader(readAt(mapHeader, offset), file + " map " + name, builder, 1, 0);
+                    return offset;
+                }
+            }
+            if (count >= maxMaps)
+                throw new IOException(file + " already has the most maps it can, " + maxMaps);
+            final long offset = header.getLong(NEXT_OFFSET_OFFSET);
+            final long size = VanillaSharedHashMap.sizeInBytes(builder);
+            if (offset + size > capacity)
+                throw new IOException(file + " doesn't have room for " + name + " of " + size + " bytes, "
+                        + (capacity - offset) + " bytes are left");
+            if (builder.preallocate())
+                NativeMemory.fallocate(raf.getFD(), 0, offset, size);
+            writeAt(builder.header(1, 0), offset);
+
+            // the map is only found once the directory entry is complete.
+            entry.clear();
+            entry.putShort((short) nameBytes.length);
+            entry.put(nameBytes);
+            entry.putLong(ENTRY_OFFSET_OFFSET, offset);
+            entry.putLong(ENTRY_SIZE_OFFSET, size);
+            writeAt(entry, entryOffset(count));
+            header.putInt(COUNT_OFFSET, count + 1);
+            header.putLong(NEXT_OFFSET_OFFSET, VanillaSharedHashMap.align64(offset + size));
+            writeAt(header, 0);
+            return offset;
+        } finally {
+            lock.release();
+        }
+    }
+
+    private static long entryOffset(int index) {
+        return HEADER_SIZE + (long) index * ENTRY_SIZE;
+    }
+
+    private static byte[] name(ByteBuffer entry) {
+        int length = entry.getShort(0);
+        if (length <= 0 || length > MAX_NAME_LENGTH)
+            return new byte[0];
+        byte[] bytes = new byte[length];
+        entry.position(2);
+        entry.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return the names of the maps in the store, in the order they were added.
+     */
+    public synchronized List<String> names() throws IOException {
+        List<String> names = new ArrayList<String>();
+        FileLock lock = fc.lock();
+        try {
+            final int count = readAt(newBuffer(HEADER_SIZE), 0).getInt(COUNT_OFFSET);
+            ByteBuffer entry = newBuffer(ENTRY_SIZE);
+            for (int i = 0; i < count; i++)
+                names.add(new String(name(readAt(entry, entryOffset(i))), "UTF-8"));
+        } finally {
+            lock.release();
+        }
+        return names;
+    }
+
+    public File file() {
+        return file;
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    public int maxMaps() {
+        return maxMaps;
+    }
+
+    MappedStore mappedStore() {
+        if (ms == null)
+            throw new IllegalStateException(file + " is closed");
+        return ms;
+    }
+
+    /**
+     * Unmap the store.  Maps in it must not be used after this.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (ms == null)
+            return;
+        ms.free();
+        ms = null;
+        raf.close();
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+/**
+ * How the changes to a map are written back to its file, see {@link SharedHashMapBuilder#syncPolicy(SharedMapSyncPolicy)}
+ */
+public enum SharedMapSyncPolicy {
+    /**
+     * Leave it to the kernel to write back dirty pages when it chooses, or until {@link SharedHashMap#force()}
+     */
+    NONE,
+    /**
+     * Write back the whole map every {@link SharedHashMapBuilder#syncIntervalMS(long)}
+     */
+    PERIODIC,
+    /**
+     * Every {@link SharedHashMapBuilder#syncIntervalMS(long)}, write back only the segments changed since they were
+     * last written back, as marked in the header of each segment.  This bounds the changes which can be lost without
+     * syncing the whole file at once.
+     */
+    DIRTY_SEGMENTS
+}
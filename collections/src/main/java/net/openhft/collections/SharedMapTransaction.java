@@ -0,0 +1,59 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+/**
+ * A group of reads and writes to a SharedHashMap which are committed together, or not at all.
+ * <p></p>
+ * Writes are held until {@link #commit()} so other threads and processes don't see any of them until then.  Values
+ * read are copies, and are checked to still be the same on commit.  A transaction is only used by one thread.
+ *
+ * @see SharedHashMap#begin()
+ */
+public interface SharedMapTransaction<K, V> {
+    /**
+     * @param key to lookup
+     * @return the value written in this transaction, else a copy of the value in the map, or null if absent.
+     */
+    V get(K key);
+
+    /**
+     * @param key   to set
+     * @param value to set it to on commit.
+     */
+    void put(K key, V value);
+
+    /**
+     * @param key to remove on commit.
+     */
+    void remove(K key);
+
+    /**
+     * Lock the segments of every key read or written, in ascending order, check the values read haven't changed
+     * and apply the writes.  An undo log is kept in the file while applying, so if the process dies part way
+     * through, the writes are rolled back when the map is next opened.
+     *
+     * @return true if committed, false if a value read had been changed and nothing was written.
+     * @throws IllegalStateException if the transaction has already been committed or rolled back.
+     */
+    boolean commit() throws IllegalStateException;
+
+    /**
+     * Discard the writes of this transaction.
+     */
+    void rollback();
+}
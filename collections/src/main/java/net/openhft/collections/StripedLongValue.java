@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.Maths;
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.NativeBytes;
+import net.openhft.lang.model.Byteable;
+
+/**
+ * A counter for a hot key, striped across cells in separate cache lines of the entry, like a
+ * {@link java.util.concurrent.atomic.LongAdder} off heap.  Each thread adds to its own cell, moving to another if
+ * it finds its cell contended, and {@link #getValue()} sums the cells.
+ * <p></p>
+ * Obtain one from {@link SharedHashMap#acquireUsing(Object, Object)} or {@link SharedHashMap#getUsing(Object,
+ * Object)}.  The entry size must have room for the key and {@link #maxSize()}, and every process must use the same
+ * number of stripes for a map.
+ */
+public class StripedLongValue implements Byteable {
+    static final int CACHE_LINE_SIZE = 64;
+    public static final int DEFAULT_STRIPES = 8;
+
+    // the cell for each thread, changed when it is contended.
+    private static final ThreadLocal<int[]> PROBE = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[]{(int) Maths.hash(Thread.currentThread().getId()) | 1};
+        }
+    };
+
+    private final int stripes;
+    private Bytes bytes;
+    private long offset;
+    private long firstCell;
+
+    public StripedLongValue() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes the number of cells, rounded up to a power of 2.
+     */
+    public StripedLongValue(int stripes) {
+        if (stripes <= 0)
+            throw new IllegalArgumentException("stripes must be positive, was " + stripes);
+        this.stripes = Maths.nextPower2(stripes, 1);
+    }
+
+    public int stripes() {
+        return stripes;
+    }
+
+    @Override
+    public void bytes(Bytes bytes, long offset) {
+        this.bytes = bytes;
+        this.offset = offset;
+        if (bytes == null)
+            return;
+        // start the cells on a cache line, which is the same in every process as mappings are page aligned.
+        long address = bytes instanceof NativeBytes ? ((NativeBytes) bytes).startAddr() + offset : offset;
+        firstCell = offset + (-address & (CACHE_LINE_SIZE - 1));
+    }
+
+    @Override
+    public Bytes bytes() {
+        return bytes;
+    }
+
+    @Override
+    public long offset() {
+        return offset;
+    }
+
+    /**
+     * @return the space needed in an entry, which only needs to be 4-byte aligned.
+     */
+    @Override
+    public int maxSize() {
+        return stripes * CACHE_LINE_SIZE + CACHE_LINE_SIZE - 4;
+    }
+
+    public void addValue(long delta) {
+        final int[] probe = PROBE.get();
+        long cell = cell(probe[0]);
+        long value = bytes.readVolatileLong(cell);
+        if (bytes.compareAndSwapLong(cell, value, value + delta))
+            return;
+        // contended, use another cell from now on.
+        int h = probe[0];
+        h ^= h << 13;
+        h ^= h >>> 17;
+        h ^= h << 5;
+        probe[0] = h;
+        bytes.addAtomicLong(cell(h), delta);
+    }
+
+    public void increment() {
+        addValue(1);
+    }
+
+    public void decrement() {
+        addValue(-1);
+    }
+
+    /**
+     * @return the sum of the cells, which is not a snapshot if other threads are adding at the same time.
+     */
+    public long getValue() {
+        long sum = 0;
+        for (int i = 0; i < stripes; i++)
+            sum += bytes.readVolatileLong(firstCell + (long) i * CACHE_LINE_SIZE);
+        return sum;
+    }
+
+    /**
+     * Set every cell to zero, losing any concurrent additions.
+     */
+    public void reset() {
+        for (int i = 0; i < stripes; i++)
+            bytes.writeOrderedLong(firstCell + (long) i * CACHE_LINE_SIZE, 0L);
+    }
+
+    private long cell(int h) {
+        return firstCell + (long) (h & (stripes - 1)) * CACHE_LINE_SIZE;
+    }
+
+    @Override
+    public String toString() {
+        return bytes == null ? "StripedLongValue{unset}" : String.valueOf(getValue());
+    }
+}
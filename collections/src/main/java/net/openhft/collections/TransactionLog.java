@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.MultiStoreBytes;
+
+/**
+ * The undo logs of transactions being committed, kept in the file after the segments.
+ * <p></p>
+ * There is a fixed number of slots, each with a 64-bit owner word holding the process and thread ids of the
+ * committer, a state, a count of records and then one record per key written.  A record holds the key and the
+ * value before the commit, or that there was none.
+ */
+final class TransactionLog {
+    static final int SLOTS = 16;
+    static final int MAX_WRITES = 64;
+
+    static final int OWNER_OFFSET = 0; // 64-bit
+    static final int STATE_OFFSET = OWNER_OFFSET + 8; // 32-bit
+    static final int COUNT_OFFSET = STATE_OFFSET + 4; // 32-bit
+    static final int RECORDS_OFFSET = COUNT_OFFSET + 4;
+
+    static final int EMPTY = 0;
+    static final int COMMITTING = 1;
+
+    private static final long[] NO_SLOTS = {};
+
+    private final Bytes bytes;
+    private final long slotSize;
+
+    TransactionLog(Bytes bytes, int entrySize) {
+        this.bytes = bytes;
+        this.slotSize = slotSize(entrySize);
+    }
+
+    static long slotSize(int entrySize) {
+        // a record is no longer than the entry holding its key and value, plus a flag and lengths.
+        return (RECORDS_OFFSET + MAX_WRITES * (entrySize + 16L) + 63) & ~63;
+    }
+
+    static long sizeOf(int entrySize) {
+        return SLOTS * slotSize(entrySize);
+    }
+
+    /**
+     * @param owner the process and thread ids of the committer, see SharedMapLockStrategies.lockId()
+     * @return the offset of a slot now owned by the owner, or -1 if they are all in use.
+     */
+    long tryAcquire(long owner) {
+        for (int i = 0; i < SLOTS; i++) {
+            long slot = i * slotSize;
+            if (bytes.readVolatileLong(slot + OWNER_OFFSET) == 0L
+                    && bytes.compareAndSwapLong(slot + OWNER_OFFSET, 0L, owner))
+                return slot;
+        }
+        return -1;
+    }
+
+    /**
+     * Take over the slot of a committer which died, so this thread can roll it back and release it.
+     *
+     * @return false if the owner is still running, or another thread took it over first.
+     */
+    boolean takeOver(long slot) {
+        long owner = bytes.readVolatileLong(slot + OWNER_OFFSET);
+        return owner != 0L && !Processes.isAlive((int) (owner >>> 32))
+                && bytes.compareAndSwapLong(slot + OWNER_OFFSET, owner, SharedMapLockStrategies.lockId());
+    }
+
+    /**
+     * @return bytes to write the records of a slot to, or read them from.
+     */
+    MultiStoreBytes records(long slot) {
+        MultiStoreBytes records = new MultiStoreBytes();
+        records.storePositionAndSize(bytes, slot + RECORDS_OFFSET, slotSize - RECORDS_OFFSET);
+        return records;
+    }
+
+    /**
+     * Mark the records as complete, before the first write is applied.
+     */
+    void committing(long slot, int count) {
+        bytes.writeInt(slot + COUNT_OFFSET, count);
+        bytes.writeOrderedInt(slot + STATE_OFFSET, COMMITTING);
+    }
+
+    int count(long slot) {
+        return bytes.readVolatileInt(slot + COUNT_OFFSET);
+    }
+
+    /**
+     * Discard the records, after the last write is applied, and free the slot.
+     */
+    void release(long slot) {
+        bytes.writeOrderedInt(slot + STATE_OFFSET, EMPTY);
+        bytes.writeOrderedLong(slot + OWNER_OFFSET, 0L);
+    }
+
+    /**
+     * Find the slot of each committer which died.
+     *
+     * @return the offsets of the slots whose owner is no longer running.
+     */
+    long[] abandonedSlots() {
+        long[] slots = null;
+        int count = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            long slot = i * slotSize;
+            long owner = bytes.readVolatileLong(slot + OWNER_OFFSET);
+            if (owner != 0L && !Processes.isAlive((int) (owner >>> 32))) {
+                // checked on every commit, so only allocate when there is one.
+                if (slots == null)
+                    slots = new long[SLOTS];
+                slots[count++] = slot;
+            }
+        }
+        if (count == 0)
+            return NO_SLOTS;
+        long[] ret = new long[count];
+        System.arraycopy(slots, 0, ret, 0, count);
+        return ret;
+    }
+
+    boolean isCommitting(long slot) {
+        return bytes.readVolatileInt(slot + STATE_OFFSET) == COMMITTING;
+    }
+}
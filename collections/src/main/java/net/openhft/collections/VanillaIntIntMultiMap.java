@@ -155,31 +155,44 @@ class VanillaIntIntMultiMap implements IntIntMultiMap {
     /////////////////////
     // Stateful methods
 
-    private int searchHash = -1;
-    private long searchPos = -1;
+    private final Cursor cursor = new Cursor();
 
     @Override
     public int startSearch(int key) {
+        return startSearch(cursor, key);
+    }
+
+    @Override
+    public int nextPos() {
+        return nextPos(cursor);
+    }
+
+    @Override
+    public int startSearch(Cursor cursor, int key) {
         if (key == UNSET_KEY)
             key = HASH_INSTEAD_OF_UNSET_KEY;
 
-        searchPos = indexToPos(key & capacityMask);
-        return searchHash = key;
+        cursor.searchPos = indexToPos(key & capacityMask);
+        return cursor.searchHash = key;
     }
 
     @Override
-    public int nextPos() {
+    public int nextPos(Cursor cursor) {
+        long searchPos = cursor.searchPos;
         for (int i = 0; i < capacity; i++) {
             long entry = bytes.readLong(searchPos);
             int hash2 = (int) (entry >> 32);
             if (hash2 == UNSET_KEY) {
+                cursor.searchPos = searchPos;
                 return UNSET_VALUE;
             }
             searchPos = (searchPos + ENTRY_SIZE) & capacityMask2;
-            if (hash2 == searchHash) {
+            if (hash2 == cursor.searchHash) {
+                cursor.searchPos = searchPos;
                 return (int) entry;
             }
         }
+        cursor.searchPos = searchPos;
         return UNSET_VALUE;
     }
 
@@ -16,6 +16,7 @@
 
 package net.openhft.collections;
 
+import net.openhft.lang.Jvm;
 import net.openhft.lang.Maths;
 import net.openhft.lang.collection.DirectBitSet;
 import net.openhft.lang.collection.SingleThreadedDirectBitSet;
@@ -27,8 +28,15 @@ import net.openhft.lang.model.constraints.NotNull;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,13 +44,44 @@ import static java.lang.Thread.currentThread;
 
 public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements SharedHashMap<K, V> {
     private static final Logger LOGGER = Logger.getLogger(VanillaSharedHashMap.class.getName());
+    // how long to wait for a lock before checking whether its holder is still alive, doubling up to the max.
+    static final long LIVENESS_CHECK_NS = 100 * 1000;
+    static final long MAX_LIVENESS_CHECK_NS = 10 * 1000 * 1000;
+    // in the header when the processes writing to a map aren't all in one known pid namespace.
+    static final long MIXED_PID_NAMESPACES = -1;
+    private static final long PROCESS_ID = Jvm.getProcessId();
+    // written by loadFence(), one per thread so lock free readers don't contend for a cache line.
+    private static final ThreadLocal<AtomicInteger> FENCES = new ThreadLocal<AtomicInteger>() {
+        @Override
+        protected AtomicInteger initialValue() {
+            return new AtomicInteger();
+        }
+    };
+    // the number of operations which can be waiting to be combined per segment.
+    static final int COMBINING_SLOTS = 32;
+    static final int COMBINING_SPINS = 100;
+    static final int PAGE_SIZE = 4096;
+    private static final Object PREALLOCATE_LOCK = new Object();
+    // the most entries moved while holding a segment lock when compacting.
+    static final int COMPACT_BATCH = 1024;
     private final ThreadLocal<DirectBytes> localBytes = new ThreadLocal<DirectBytes>();
+    private final ThreadLocal<DirectBytes> localValueBytes = new ThreadLocal<DirectBytes>();
+    private final ThreadLocal<ReadContext> localReadContext = new ThreadLocal<ReadContext>();
+    private final ThreadLocal<CombinedOp> localCombinedOp = new ThreadLocal<CombinedOp>();
     private final Class<K> kClass;
     private final Class<V> vClass;
     private final long lockTimeOutNS;
     private final int metaDataBytes;
-    private Segment[] segments; // non-final for close()
-    private MappedStore ms;     // non-final for close()
+    private final int entryHeaderBytes;
+    private AtomicReferenceArray<Segment> segments; // non-final for close(), each created on first use.
+    private MappedStore[] mappings; // non-final for close(), one per shard.
+    // segment i is segment i / shards of the shard i % shards, each shard in its own file.
+    private final File[] files;
+    private final int shards;
+    // the store this map is a region of, or null if the map has its own files.
+    private final SharedMapStore store;
+    private final long storeOffset;
+    private DirectBytes[] shardBytes; // non-final for close(), each whole shard, to read segment headers.
     private final Hasher hasher;
 
     private final int replicas;
@@ -56,12 +95,64 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
     private final boolean generatedValueType;
     private final boolean putReturnsNull;
     private final boolean removeReturnsNull;
+    private final boolean entryLocking;
+    private final boolean singleWriter;
+    private final boolean readOnly;
+    // reads validated against the generation of the segment, rather than locking it.
+    private final boolean lockFreeReads;
+    private final SharedMapLockStrategy lockStrategy;
+    private final boolean recoverOnOpen;
+    private final boolean transactional;
+    private final TransactionLog transactionLog;
+    private final boolean flatCombining;
+    private final boolean versionedEntries;
+    private final SharedMapSegmentSelector segmentSelector;
+    private final SharedMapPretouch pretouch;
+    private final boolean preallocate;
+    private final Set<SharedMapMemoryAdvice> indexMemoryAdvice;
+    private final Set<SharedMapMemoryAdvice> entryMemoryAdvice;
+    private final long compactIntervalMS;
+    private final SharedMapSyncPolicy syncPolicy;
+    private final long syncIntervalMS;
+    // segments mark themselves as changed in their header, for the syncer to find.
+    private final boolean trackDirty;
+    // compacts and syncs the map, if either is done in the background.
+    private final ScheduledExecutorService maintenance;
+    // the threads recover() and pretouch() share the segments between, created on first use.
+    private ThreadPoolExecutor workers;
+    // so a compaction which can't release memory doesn't log it every time.
+    private volatile boolean releaseFailureLogged = false;
 
     transient Set<Map.Entry<K, V>> entrySet;
 
 
     public VanillaSharedHashMap(SharedHashMapBuilder builder, File file,
                                 Class<K> kClass, Class<V> vClass) throws IOException {
+        this(builder, new File[]{file}, null, 0, kClass, vClass);
+    }
+
+    /**
+     * A map with its segments spread over many files.
+     */
+    VanillaSharedHashMap(SharedHashMapBuilder builder, File[] files,
+                         Class<K> kClass, Class<V> vClass) throws IOException {
+        this(builder, files.clone(), null, 0, kClass, vClass);
+    }
+
+    /**
+     * A map in a region of a store, which it shares with other maps.
+     */
+    VanillaSharedHashMap(SharedHashMapBuilder builder, SharedMapStore store, long storeOffset,
+                         Class<K> kClass, Class<V> vClass) throws IOException {
+        this(builder, new File[]{store.file()}, store, storeOffset, kClass, vClass);
+    }
+
+    private VanillaSharedHashMap(SharedHashMapBuilder builder, File[] files, SharedMapStore store, long storeOffset,
+                                 Class<K> kClass, Class<V> vClass) throws IOException {
+        this.files = files;
+        this.shards = files.length;
+        this.store = store;
+        this.storeOffset = storeOffset;
         this.kClass = kClass;
         this.vClass = vClass;
 
@@ -75,6 +166,16 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
         this.generatedValueType = builder.generatedValueType();
         this.putReturnsNull = builder.putReturnsNull();
         this.removeReturnsNull = builder.removeReturnsNull();
+        this.entryLocking = builder.entryLocking();
+        this.entryHeaderBytes = builder.entryHeaderBytes();
+        this.singleWriter = builder.singleWriter();
+        this.readOnly = builder.readOnly();
+        this.lockFreeReads = singleWriter || readOnly;
+        this.lockStrategy = builder.lockStrategy();
+        this.recoverOnOpen = builder.recoverOnOpen();
+        this.transactional = builder.transactional();
+        this.flatCombining = builder.flatCombining();
+        this.versionedEntries = builder.versionedEntries();
 
         int segments = builder.actualSegments();
         int entriesPerSegment = builder.actualEntriesPerSegment();
@@ -83,88 +184,475 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
         this.eventListener = builder.eventListener();
         this.hashMask = entriesPerSegment > (1 << 16) ? ~0 : 0xFFFF;
 
-        this.hasher = new Hasher(segments, hashMask);
+        this.segmentSelector = builder.segmentSelector();
+        this.pretouch = builder.pretouch();
+        this.preallocate = builder.preallocate();
+        this.indexMemoryAdvice = builder.indexMemoryAdvice();
+        this.entryMemoryAdvice = builder.entryMemoryAdvice();
+        this.compactIntervalMS = builder.compactIntervalMS();
+        if (compactIntervalMS > 0 && byteableValues())
+            throw new IllegalArgumentException("Background compaction would move entries out from under Byteable"
+                    + " values, see SharedHashMapBuilder.compactIntervalMS()");
+        this.syncPolicy = builder.syncPolicy();
+        this.syncIntervalMS = builder.syncIntervalMS();
+        this.trackDirty = syncPolicy == SharedMapSyncPolicy.DIRTY_SEGMENTS && !builder.readOnly();
+        this.hasher = new Hasher(segments, hashMask, segmentSelector);
+
+        this.segments = new AtomicReferenceArray<Segment>(segments);
+        if (shards < 1 || shards > segments)
+            throw new IllegalArgumentException("A map of " + segments + " segments can have 1 to " + segments
+                    + " files, was " + shards);
+
+        this.mappings = new MappedStore[shards];
+        this.shardBytes = new DirectBytes[shards];
+        // the first file last, so a map whose first file is full size has every shard.
+        for (int i = shards - 1; i >= 0; i--) {
+            if (store == null) {
+                final long unallocated = preallocate && !readOnly ? preallocate(files[i], sizeInBytes(i)) : 0;
+                this.mappings[i] = new MappedStore(files[i],
+                        readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, sizeInBytes(i));
+                // the holes in what was already there, which processes using the map could be writing to.
+                if (unallocated > 0)
+                    touchPages(mappings[i].createSlice(0, unallocated), unallocated, true);
+            } else {
+                this.mappings[i] = store.mappedStore();
+            }
+            this.shardBytes[i] = mappings[i].createSlice(storeOffset, sizeInBytes(i));
+        }
+
+        if (!readOnly)
+            registerPidNamespace();
+
+        // the first shard has the transaction log.
+        long offset = storeOffset + segmentOffset(segmentsPerShard());
+        this.transactionLog = transactional
+                ? new TransactionLog(mappings[0].createSlice(offset, TransactionLog.sizeOf(entrySize)), entrySize)
+                : null;
+        if (!indexMemoryAdvice.isEmpty() || !entryMemoryAdvice.isEmpty())
+            adviseMemory();
+        if (pretouch != SharedMapPretouch.NONE)
+            pretouch(pretouch);
+        // a read only map leaves repairs to the processes which write to it, as does one which isn't the single writer.
+        if (builder.recoverOnOpen() && !readOnly) {
+            if (writtenByAnotherProcess())
+                LOGGER.info("Not recovering " + files[0] + " on opening, as another process is its single writer");
+            else
+                recover();
+        }
+        if (transactional && !readOnly)
+            rollBackAbandonedTransactions();
+        this.maintenance = (compactIntervalMS > 0 || syncPolicy != SharedMapSyncPolicy.NONE) && !readOnly
+                ? startMaintenance(files[0]) : null;
+    }
+
+    /**
+     * Record the pid namespace of this process in the header, or that the processes which write to the map are in
+     * different namespaces, or ones which aren't known, so a lock holder can't be told to be dead from its process
+     * id.  This stays recorded for the life of the file.
+     */
+    private void registerPidNamespace() {
+        final long namespace = Processes.pidNamespace();
+        final DirectBytes header = shardBytes[0];
+        while (true) {
+            long recorded = header.readVolatileLong(SharedHashMapBuilder.PID_NAMESPACE_OFFSET);
+            if (recorded == MIXED_PID_NAMESPACES || recorded == namespace && namespace != 0)
+                return;
+            long update = recorded == 0 && namespace != 0 ? namespace : MIXED_PID_NAMESPACES;
+            if (header.compareAndSwapLong(SharedHashMapBuilder.PID_NAMESPACE_OFFSET, recorded, update)) {
+                if (update == MIXED_PID_NAMESPACES)
+                    LOGGER.warning("The processes using " + files[0] + " are not known to share a pid namespace,"
+                            + " so the locks of one which dies are only released by the lock time out");
+                return;
+            }
+        }
+    }
+
+    /**
+     * In single writer mode, claim the map for this process on its first change, so a process which only reads
+     * can't also write the segment headers, e.g. by clear(), compact() or recover(), while the writer does without a
+     * shared lock.  A writer which has died is taken over.
+     *
+     * @throws IllegalStateException if another process is the single writer.
+     */
+    void checkWriter() throws IllegalStateException {
+        final DirectBytes header = shardBytes[0];
+        while (true) {
+            final long writer = header.readVolatileLong(SharedHashMapBuilder.WRITER_OFFSET);
+            if (writer == PROCESS_ID)
+                return;
+            if (writer != 0 && !isDead((int) writer))
+                throw new IllegalStateException("Only processId: " + writer + " can change " + files[0]
+                        + ", as it is the single writer");
+            if (header.compareAndSwapLong(SharedHashMapBuilder.WRITER_OFFSET, writer, PROCESS_ID))
+                return;
+        }
+    }
+
+    /**
+     * @return true if this process is the single writer, having changed the map.
+     */
+    boolean isWriter() {
+        return shardBytes[0].readVolatileLong(SharedHashMapBuilder.WRITER_OFFSET) == PROCESS_ID;
+    }
+
+    private boolean writtenByAnotherProcess() {
+        final long writer = shardBytes[0].readVolatileLong(SharedHashMapBuilder.WRITER_OFFSET);
+        return singleWriter && writer != 0 && writer != PROCESS_ID && !isDead((int) writer);
+    }
+
+    /**
+     * Loads before this can't be reordered with loads after it, so a lock free read checks the generation again
+     * only after reading the entry.  A volatile write then read is a full fence, as Unsafe.loadFence() needs
+     * Java 8.
+     */
+    private static void loadFence() {
+        FENCES.get().set(0);
+    }
+
+    /**
+     * @return true if every process which writes to the map is in the pid namespace of this one, so a process id in
+     * a lock can be checked with {@link Processes#isAlive(int)}.
+     */
+    boolean canCheckLiveness() {
+        final long namespace = Processes.pidNamespace();
+        return namespace != 0 && shardBytes[0].readVolatileLong(SharedHashMapBuilder.PID_NAMESPACE_OFFSET) == namespace;
+    }
+
+    /**
+     * @return true only if the process is known to have exited, never for one which can't be checked.
+     */
+    boolean isDead(int processId) {
+        return processId != 0 && canCheckLiveness() && !Processes.isAlive(processId);
+    }
+
+    /**
+     * Release the disk blocks of a region of a file, and with them its pages in the page cache.
+     *
+     * @return true if released, false if fallocate(FALLOC_FL_PUNCH_HOLE) isn't supported.
+     */
+    private static boolean punchHole(File file, long offset, long length) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                return NativeMemory.fallocate(raf.getFD(),
+                        NativeMemory.FALLOC_FL_KEEP_SIZE | NativeMemory.FALLOC_FL_PUNCH_HOLE, offset, length);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to open " + file + " to release its disk blocks", e);
+            return false;
+        }
+    }
+
+    /**
+     * @return true if values from acquireUsing() and getUsing() can refer to their entries.
+     */
+    private boolean byteableValues() {
+        return generatedValueType || Byteable.class.isAssignableFrom(vClass);
+    }
+
+    /**
+     * @return a thread per CPU, which exit when idle, so calling recover() or pretouch() again doesn't create more.
+     */
+    private synchronized ExecutorService workers() {
+        if (workers == null) {
+            final File file = file();
+            final int threads = Runtime.getRuntime().availableProcessors();
+            workers = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "worker " + file);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            workers.allowCoreThreadTimeOut(true);
+        }
+        return workers;
+    }
+
+    private ScheduledExecutorService startMaintenance(final File file) {
+        ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "maintenance " + file);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (compactIntervalMS > 0)
+            maintenance.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // only the single writer can move entries, so other processes leave it to the writer.
+                        if (!singleWriter || isWriter())
+                            compact();
+                    } catch (RuntimeException e) {
+                        // keep compacting, a segment locked for too long can be compacted next time.
+                        LOGGER.log(Level.WARNING, "Unable to compact " + file, e);
+                    }
+                }
+            }, compactIntervalMS, compactIntervalMS, TimeUnit.MILLISECONDS);
+        if (syncPolicy != SharedMapSyncPolicy.NONE)
+            maintenance.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sync();
+                    } catch (RuntimeException e) {
+                        // keep syncing, the changes not written back will be written next time.
+                        LOGGER.log(Level.WARNING, "Unable to sync " + file, e);
+                    }
+                }
+            }, syncIntervalMS, syncIntervalMS, TimeUnit.MILLISECONDS);
+        return maintenance;
+    }
+
+    /**
+     * Segments are created on first use, so opening a map doesn't touch the index of every segment, and a process
+     * which only reads a few keys only creates the segments of those keys.
+     *
+     * @return the segment, created if needed.
+     */
+    Segment segment(int index) {
+        Segment segment = segments.get(index);
+        if (segment == null) {
+            segment = new Segment(mappings[index % shards].createSlice(
+                    storeOffset + segmentOffset(index / shards), segmentSize()), index);
+            // another thread may have created it first.
+            if (!segments.compareAndSet(index, null, segment))
+                segment = segments.get(index);
+        }
+        return segment;
+    }
 
+    /**
+     * @return every segment, creating those not used yet.
+     */
+    Segment[] segments() {
         @SuppressWarnings("unchecked")
         Segment[] ss = (VanillaSharedHashMap.Segment[])
-                new VanillaSharedHashMap.Segment[segments];
-        this.segments = ss;
+                new VanillaSharedHashMap.Segment[segments.length()];
+        for (int i = 0; i < ss.length; i++)
+            ss[i] = segment(i);
+        return ss;
+    }
+
+    /**
+     * @return the number of segments created so far, by their first use.
+     */
+    int createdSegments() {
+        int count = 0;
+        for (int i = 0; i < segments.length(); i++)
+            if (segments.get(i) != null)
+                count++;
+        return count;
+    }
+
+    /**
+     * @param index of the segment in its shard.
+     * @return the offset of the segment from the start of its shard.
+     */
+    long segmentOffset(int index) {
+        return SharedHashMapBuilder.HEADER_SIZE + index * segmentSize();
+    }
+
+    /**
+     * Read a field of the header of a segment, without creating the segment.
+     */
+    private int readSegmentInt(int index, int field) {
+        return shardBytes[index % shards].readVolatileInt(segmentOffset(index / shards) + field);
+    }
+
+    private long readSegmentLong(int index, int field) {
+        return shardBytes[index % shards].readVolatileLong(segmentOffset(index / shards) + field);
+    }
 
-        this.ms = new MappedStore(file, FileChannel.MapMode.READ_WRITE,
-                sizeInBytes());
+    int segmentsPerShard() {
+        return (segments.length() + shards - 1) / shards;
+    }
+
+    /**
+     * Allocate the disk blocks for the whole file, while holding a file lock so a process opening the map at the
+     * same time doesn't write zeros over entries added after the file was extended.  A FileLock is held by the
+     * JVM, not the thread, so preallocations in this JVM are also done one at a time, as a second lock of the same
+     * file would throw an OverlappingFileLockException.
+     *
+     * @return the length at the start of the file which may still have holes, as without fallocate() only the
+     * part past the end of the file can be written with zeros, or 0 if the whole file is allocated.
+     */
+    static long preallocate(File file, long size) throws IOException {
+        synchronized (PREALLOCATE_LOCK) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel fc = raf.getChannel();
+                FileLock lock = fc.lock();
+                try {
+                    if (NativeMemory.fallocate(raf.getFD(), 0, 0, size))
+                        return 0;
+                    // past the end of the file there can't be any entries yet.
+                    final long length = fc.size();
+                    ByteBuffer zeros = ByteBuffer.allocateDirect(1 << 20);
+                    for (long position = length; position < size; ) {
+                        zeros.clear();
+                        zeros.limit((int) Math.min(zeros.capacity(), size - position));
+                        position += fc.write(zeros, position);
+                    }
+                    fc.force(false);
+                    return Math.min(length, size);
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                raf.close();
+            }
+        }
+    }
 
-        long offset = SharedHashMapBuilder.HEADER_SIZE;
-        long segmentSize = segmentSize();
-        for (int i = 0; i < this.segments.length; i++) {
-            this.segments[i] = new Segment(ms.createSlice(offset, segmentSize));
-            offset += segmentSize;
+    /**
+     * Fault in each page of a region, e.g. to allocate its disk block with a write which doesn't change its value,
+     * so this is safe while other threads and processes are using it.
+     *
+     * @param write true to write each page, false to only read it.
+     * @return the number of pages touched.
+     */
+    static long touchPages(NativeBytes bytes, long end, boolean write) {
+        final long startAddr = bytes.startAddr();
+        long pages = 0;
+        for (long offset = 0; offset < end; offset = ((startAddr + offset + PAGE_SIZE) & -PAGE_SIZE) - startAddr) {
+            if (write) {
+                int value;
+                do {
+                    value = bytes.readVolatileInt(offset);
+                } while (!bytes.compareAndSwapInt(offset, value, value));
+            } else {
+                // volatile so the JIT can't drop the unused read.
+                bytes.readVolatileLong(offset);
+            }
+            pages++;
         }
+        return pages;
     }
 
     @Override
     public File file() {
-        return ms.file();
+        return files[0];
     }
 
     @Override
     public SharedHashMapBuilder builder() {
         return new SharedHashMapBuilder()
-                .actualSegments(segments.length)
+                .actualSegments(segments.length())
                 .actualEntriesPerSegment(entriesPerSegment)
-                .entries((long) segments.length * entriesPerSegment / 2)
+                .entries((long) segments.length() * entriesPerSegment / 2)
                 .entrySize(entrySize)
                 .errorListener(errorListener)
                 .generatedKeyType(generatedKeyType)
                 .generatedValueType(generatedValueType)
                 .lockTimeOutMS(lockTimeOutNS / 1000000)
-                .minSegments(segments.length)
-                .actualSegments(segments.length)
+                .minSegments(segments.length())
+                .actualSegments(segments.length())
                 .actualEntriesPerSegment(entriesPerSegment)
                 .putReturnsNull(putReturnsNull)
                 .removeReturnsNull(removeReturnsNull)
                 .replicas(replicas)
-                .transactional(false)
+                .transactional(transactional)
                 .metaDataBytes(metaDataBytes)
-                .eventListener(eventListener);
+                .eventListener(eventListener)
+                .entryLocking(entryLocking)
+                .singleWriter(singleWriter)
+                .readOnly(readOnly)
+                .lockStrategy(lockStrategy)
+                .recoverOnOpen(recoverOnOpen)
+                .flatCombining(flatCombining)
+                .versionedEntries(versionedEntries)
+                .segmentSelector(segmentSelector)
+                .pretouch(pretouch)
+                .preallocate(preallocate)
+                .indexMemoryAdvice(indexMemoryAdvice.toArray(new SharedMapMemoryAdvice[indexMemoryAdvice.size()]))
+                .entryMemoryAdvice(entryMemoryAdvice.toArray(new SharedMapMemoryAdvice[entryMemoryAdvice.size()]))
+                .compactIntervalMS(compactIntervalMS)
+                .syncPolicy(syncPolicy)
+                .syncIntervalMS(syncIntervalMS);
+    }
+
+    /**
+     * @return the size of a shard, all the map unless it has more than one file.  Only the first shard has the
+     * transaction log.
+     */
+    long sizeInBytes(int shard) {
+        return sizeInBytes(segmentsPerShard(), entriesPerSegment, entrySize, replicas, transactional && shard == 0);
+    }
+
+    /**
+     * @return the size of a shard of a map with the settings of a builder, which has its actual segments set.
+     */
+    static long sizeInBytes(SharedHashMapBuilder builder, int shards, int shard) {
+        return sizeInBytes((builder.actualSegments() + shards - 1) / shards, builder.actualEntriesPerSegment(),
+                builder.entrySize(), builder.replicas(), builder.transactional() && shard == 0);
+    }
+
+    /**
+     * @return the size of a map with the settings of a builder, which has its actual segments set.
+     */
+    static long sizeInBytes(SharedHashMapBuilder builder) {
+        return sizeInBytes(builder.actualSegments(), builder.actualEntriesPerSegment(), builder.entrySize(),
+                builder.replicas(), builder.transactional());
     }
 
-    long sizeInBytes() {
+    private static long sizeInBytes(int segments, int entriesPerSegment, int entrySize, int replicas, boolean transactional) {
         return SharedHashMapBuilder.HEADER_SIZE +
-                segments.length * segmentSize();
+                segments * segmentSize(entriesPerSegment, entrySize, replicas) +
+                (transactional ? TransactionLog.sizeOf(entrySize) : 0);
     }
 
     long sizeOfMultiMap() {
+        return sizeOfMultiMap(entriesPerSegment);
+    }
+
+    private static long sizeOfMultiMap(int entriesPerSegment) {
         int np2 = Maths.nextPower2(entriesPerSegment, 8);
         return align64(np2 * (entriesPerSegment > (1 << 16) ? 8L : 4L));
     }
 
     long sizeOfBitSets() {
+        return sizeOfBitSets(entriesPerSegment);
+    }
+
+    private static long sizeOfBitSets(int entriesPerSegment) {
         return align64(entriesPerSegment / 8);
     }
 
     int numberOfBitSets() {
+        return numberOfBitSets(replicas);
+    }
+
+    private static int numberOfBitSets(int replicas) {
         return 1 // for free list
                 + (replicas > 0 ? 1 : 0) // deleted set
                 + replicas; // to notify each replica of a change.
     }
 
     long segmentSize() {
-        long ss = SharedHashMapBuilder.SEGMENT_HEADER
-                + sizeOfMultiMap() // the VanillaIntIntMultiMap
-                + numberOfBitSets() * sizeOfBitSets() // the free list and 0+ dirty lists.
-                + sizeOfEntriesInSegment();
-        assert (ss & 63) == 0;
-        return ss; // the actual entries used.
+        return segmentSize(entriesPerSegment, entrySize, replicas);
     }
 
-    private long sizeOfEntriesInSegment() {
-        return align64((long) entriesPerSegment * entrySize);
+    private static long segmentSize(int entriesPerSegment, int entrySize, int replicas) {
+        long ss = SharedHashMapBuilder.SEGMENT_HEADER
+                + sizeOfMultiMap(entriesPerSegment) // the VanillaIntIntMultiMap
+                + numberOfBitSets(replicas) * sizeOfBitSets(entriesPerSegment) // the free list and 0+ dirty lists.
+                + align64((long) entriesPerSegment * entrySize); // the actual entries used.
+        assert (ss & 63) == 0;
+        return ss;
     }
 
     /**
      * Cache line alignment, assuming 64-byte cache lines.
      */
-    private long align64(long l) {
+    static long align64(long l) {
         // 64-byte alignment.
         return (l + 63) & ~63;
     }
@@ -174,23 +662,190 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
      */
     @Override
     public void close() {
-        if (ms == null)
+        if (mappings == null)
             return;
-        ms.free();
+        if (maintenance != null) {
+            maintenance.shutdown();
+            try {
+                // a compaction or sync still running must finish before the memory is freed.
+                if (!maintenance.awaitTermination(lockTimeOutNS, TimeUnit.NANOSECONDS))
+                    LOGGER.warning("Maintenance of " + file() + " didn't finish before closing");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // the changes since the last sync are written back on close, as if there had been one more.
+            if (syncPolicy != SharedMapSyncPolicy.NONE)
+                sync();
+        }
+        synchronized (this) {
+            if (workers != null)
+                workers.shutdown();
+        }
+        // so another process can become the writer without waiting for this one to exit.
+        if (singleWriter && !readOnly)
+            shardBytes[0].compareAndSwapLong(SharedHashMapBuilder.WRITER_OFFSET, PROCESS_ID, 0L);
+        // the mapping of a store is shared with its other maps.
+        if (store == null)
+            for (MappedStore ms : mappings)
+                ms.free();
         segments = null;
-        ms = null;
+        shardBytes = null;
+        mappings = null;
     }
 
     DirectBytes acquireBytes() {
         DirectBytes bytes = localBytes.get();
         if (bytes == null) {
-            localBytes.set(bytes = new DirectStore(ms.bytesMarshallerFactory(), entrySize * 2, false).createSlice());
+            localBytes.set(bytes = new DirectStore(mappings[0].bytesMarshallerFactory(), entrySize * 2, false).createSlice());
         } else {
             bytes.clear();
         }
         return bytes;
     }
 
+    /**
+     * @return a value marshalled into a buffer for this thread, separate from the one used for keys.
+     */
+    DirectBytes getValueAsBytes(V value) {
+        DirectBytes bytes = localValueBytes.get();
+        if (bytes == null)
+            localValueBytes.set(bytes = new DirectStore(mappings[0].bytesMarshallerFactory(), entrySize * 2, false).createSlice());
+        else
+            bytes.clear();
+        if (generatedValueType)
+            ((BytesMarshallable) value).writeMarshallable(bytes);
+        else
+            bytes.writeInstance(vClass, value);
+        bytes.flip();
+        return bytes;
+    }
+
+    ReadContext acquireReadContext() {
+        ReadContext context = localReadContext.get();
+        if (context == null)
+            localReadContext.set(context = new ReadContext());
+        return context;
+    }
+
+    /**
+     * The state a thread needs to search a segment without holding its lock.
+     */
+    static final class ReadContext {
+        final IntIntMultiMap.Cursor cursor = new IntIntMultiMap.Cursor();
+        final MultiStoreBytes bytes = new MultiStoreBytes();
+    }
+
+    CombinedOp acquireCombinedOp() {
+        CombinedOp op = localCombinedOp.get();
+        if (op == null)
+            localCombinedOp.set(op = new CombinedOp());
+        return op;
+    }
+
+    /**
+     * A write published by a thread for whichever thread holds the segment lock to perform.  Each thread reuses
+     * one, as it waits for it to be done before doing anything else.
+     */
+    final class CombinedOp {
+        static final int PUT = 0, REMOVE = 1, REPLACE = 2;
+
+        int kind;
+        DirectBytes keyBytes;
+        K key;
+        V value;
+        V expectedValue;
+        V previousValue;
+        int hash2;
+        boolean replaceIfPresent;
+
+        V result;
+        Throwable error;
+        volatile boolean done;
+
+        CombinedOp put(DirectBytes keyBytes, K key, V value, int hash2, boolean replaceIfPresent, V previousValue) {
+            return set(PUT, keyBytes, key, value, null, previousValue, hash2, replaceIfPresent);
+        }
+
+        CombinedOp remove(DirectBytes keyBytes, K key, V expectedValue, int hash2, V removedValue) {
+            return set(REMOVE, keyBytes, key, null, expectedValue, removedValue, hash2, false);
+        }
+
+        CombinedOp replace(DirectBytes keyBytes, K key, V expectedValue, V value, int hash2, V previousValue) {
+            return set(REPLACE, keyBytes, key, value, expectedValue, previousValue, hash2, false);
+        }
+
+        private CombinedOp set(int kind, DirectBytes keyBytes, K key, V value, V expectedValue, V previousValue,
+                               int hash2, boolean replaceIfPresent) {
+            this.kind = kind;
+            this.keyBytes = keyBytes;
+            this.key = key;
+            this.value = value;
+            this.expectedValue = expectedValue;
+            this.previousValue = previousValue;
+            this.hash2 = hash2;
+            this.replaceIfPresent = replaceIfPresent;
+            this.result = null;
+            this.error = null;
+            this.done = false;
+            return this;
+        }
+
+        /**
+         * Perform the write, catching any error for the thread which published it, which waits until it is done
+         * however this ends.
+         */
+        void execute(Segment segment) {
+            try {
+                switch (kind) {
+                    case PUT:
+                        result = segment.put(keyBytes, key, value, hash2, replaceIfPresent, previousValue);
+                        break;
+                    case REMOVE:
+                        result = segment.remove(keyBytes, key, expectedValue, hash2, previousValue);
+                        break;
+                    case REPLACE:
+                        result = segment.replace(keyBytes, key, expectedValue, value, hash2, previousValue);
+                        break;
+                    default:
+                        throw new AssertionError(kind);
+                }
+            } catch (Throwable t) {
+                error = t;
+            } finally {
+                done = true;
+            }
+        }
+
+        /**
+         * @return the result to the thread which published it, dropping references to its arguments.
+         */
+        V takeResult() {
+            final V ret = result;
+            final Throwable t = error;
+            keyBytes = null;
+            key = null;
+            value = expectedValue = previousValue = result = null;
+            error = null;
+            if (t instanceof RuntimeException)
+                throw (RuntimeException) t;
+            if (t instanceof Error)
+                throw (Error) t;
+            if (t != null)
+                throw new IllegalStateException(t);
+            return ret;
+        }
+    }
+
+    /**
+     * Exposes the owner of the lock so it can be reported on a timeout.
+     */
+    static final class WriterLock extends ReentrantLock {
+        long ownerThreadId() {
+            Thread owner = getOwner();
+            return owner == null ? 0L : owner.getId();
+        }
+    }
+
     private void checkKey(Object key) {
         if (!kClass.isInstance(key)) {
             // key.getClass will cause NPE exactly as needed
@@ -206,12 +861,21 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
         }
     }
 
+    /**
+     * Only a BytesMarshallable can be read into, other types are read as a new object.
+     */
+    private static void checkPreviousValue(Object previousValue) {
+        if (previousValue != null && !(previousValue instanceof BytesMarshallable))
+            throw new IllegalArgumentException("A previous value to copy into must be BytesMarshallable, but was a "
+                    + previousValue.getClass());
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public V put(K key, V value) {
-        return put0(key, value, true);
+        return put0(key, value, true, null);
     }
 
     /**
@@ -219,17 +883,29 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
      */
     @Override
     public V putIfAbsent(K key, V value) {
-        return put0(key, value, false);
+        return put0(key, value, false, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V putUsing(K key, V value, V previousValue) {
+        checkPreviousValue(previousValue);
+        return put0(key, value, true, previousValue);
     }
 
-    private V put0(K key, V value, boolean replaceIfPresent) {
+    private V put0(K key, V value, boolean replaceIfPresent, V previousValue) {
+        checkWritable();
         checkKey(key);
         checkValue(value);
         DirectBytes bytes = getKeyAsBytes(key);
         long hash = hasher.hash(bytes);
-        int segmentNum = hasher.getSegment(hash);
+        int segmentNum = hasher.getSegment(bytes, hash);
         int segmentHash = hasher.segmentHash(hash);
-        return segments[segmentNum].put(bytes, key, value, segmentHash, replaceIfPresent);
+        if (flatCombining)
+            return segment(segmentNum).combine(acquireCombinedOp().put(bytes, key, value, segmentHash, replaceIfPresent, previousValue));
+        return segment(segmentNum).put(bytes, key, value, segmentHash, replaceIfPresent, previousValue);
     }
 
     private DirectBytes getKeyAsBytes(K key) {
@@ -261,12 +937,14 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
     }
 
     private V lookupUsing(K key, V value, boolean create) {
+        if (create)
+            checkWritable();
         checkKey(key);
         DirectBytes bytes = getKeyAsBytes(key);
         long hash = hasher.hash(bytes);
-        int segmentNum = hasher.getSegment(hash);
+        int segmentNum = hasher.getSegment(bytes, hash);
         int segmentHash = hasher.segmentHash(hash);
-        return segments[segmentNum].acquire(bytes, key, value, segmentHash, create);
+        return segment(segmentNum).acquire(bytes, key, value, segmentHash, create);
     }
 
     /**
@@ -277,16 +955,115 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
         checkKey(key);
         final DirectBytes bytes = getKeyAsBytes((K) key);
         long hash = hasher.hash(bytes);
-        int segmentNum = hasher.getSegment(hash);
+        int segmentNum = hasher.getSegment(bytes, hash);
         int segmentHash = hasher.segmentHash(hash);
 
-        return segments[segmentNum].containsKey(bytes, segmentHash);
+        return segment(segmentNum).containsKey(bytes, segmentHash);
     }
 
     @Override
     public void clear() {
-        for (Segment segment : segments)
-            segment.clear();
+        clear(false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear(boolean releaseMemory) {
+        checkWritable();
+        int notReleased = 0;
+        for (Segment segment : segments())
+            if (!segment.clear(releaseMemory))
+                notReleased++;
+        if (notReleased > 0)
+            LOGGER.warning("Unable to release the memory of " + notReleased + " segments of " + file()
+                    + ", errno: " + NativeMemory.lastError());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long compact() throws IllegalStateException {
+        return compact(false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long compact(boolean byteableValuesReleased) throws IllegalStateException {
+        checkWritable();
+        if (!byteableValuesReleased && byteableValues())
+            throw new IllegalStateException("Compacting would move entries out from under Byteable values, see"
+                    + " SharedHashMap.compact(boolean)");
+        long moved = 0;
+        for (Segment segment : segments()) {
+            // a batch at a time so other threads aren't kept waiting for the lock.
+            int batch;
+            do {
+                batch = segment.compact(COMPACT_BATCH);
+                moved += batch;
+            } while (batch == COMPACT_BATCH);
+        }
+        return moved;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void force() {
+        for (int i = 0; i < shards; i++)
+            if (!NativeMemory.msync(shardBytes[i].startAddr(), sizeInBytes(i), NativeMemory.MS_SYNC, PAGE_SIZE))
+                forceFile(files[i]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void force(K key) {
+        checkKey(key);
+        final DirectBytes bytes = getKeyAsBytes(key);
+        int segmentNum = hasher.getSegment(bytes, hasher.hash(bytes));
+        if (!segment(segmentNum).sync())
+            forceFile(files[segmentNum % shards]);
+    }
+
+    /**
+     * Write back the changes since the last sync, the whole map or only the segments marked as changed.
+     */
+    void sync() {
+        if (syncPolicy != SharedMapSyncPolicy.DIRTY_SEGMENTS) {
+            force();
+            return;
+        }
+        // without msync a segment can't be written back alone, so sync each file at most once.
+        boolean[] unsynced = new boolean[shards];
+        for (int i = 0; i < segments.length(); i++)
+            if (readSegmentInt(i, Segment.DIRTY_OFFSET) != 0 && !segment(i).sync())
+                unsynced[i % shards] = true;
+        for (int i = 0; i < shards; i++)
+            if (unsynced[i])
+                forceFile(files[i]);
+    }
+
+    /**
+     * Sync a file without JNA, which writes back every dirty page of the file.
+     */
+    private void forceFile(File file) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, readOnly ? "r" : "rw");
+            try {
+                raf.getChannel().force(false);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to sync " + file, e);
+        }
     }
 
     /**
@@ -306,7 +1083,16 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
      */
     @Override
     public V remove(final Object key) {
-        return removeIfValueIs(key, null);
+        return removeIfValueIs(key, null, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V removeUsing(K key, V removedValue) {
+        checkPreviousValue(removedValue);
+        return removeIfValueIs(key, null, removedValue);
     }
 
     /**
@@ -318,7 +1104,7 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
     public boolean remove(final Object key, final Object value) {
         if (value == null)
             return false; // CHM compatibility; I would throw NPE
-        return removeIfValueIs(key, (V) value) != null;
+        return removeIfValueIs(key, (V) value, null) != null;
     }
 
 
@@ -328,15 +1114,19 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
      *
      * @param key           the key of the entry to remove
      * @param expectedValue null if not required
+     * @param removedValue  to copy the value removed into, or null
      * @return true if and entry was removed
      */
-    private V removeIfValueIs(final Object key, final V expectedValue) {
+    private V removeIfValueIs(final Object key, final V expectedValue, final V removedValue) {
+        checkWritable();
         checkKey(key);
         final DirectBytes bytes = getKeyAsBytes((K) key);
         long hash = hasher.hash(bytes);
-        int segmentNum = hasher.getSegment(hash);
+        int segmentNum = hasher.getSegment(bytes, hash);
         int segmentHash = hasher.segmentHash(hash);
-        return segments[segmentNum].remove(bytes, (K) key, expectedValue, segmentHash);
+        if (flatCombining)
+            return segment(segmentNum).combine(acquireCombinedOp().remove(bytes, (K) key, expectedValue, segmentHash, removedValue));
+        return segment(segmentNum).remove(bytes, (K) key, expectedValue, segmentHash, removedValue);
     }
 
     /**
@@ -347,7 +1137,7 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
     @Override
     public boolean replace(final K key, final V oldValue, final V newValue) {
         checkValue(oldValue);
-        return oldValue.equals(replaceIfValueIs(key, oldValue, newValue));
+        return oldValue.equals(replaceIfValueIs(key, oldValue, newValue, null));
     }
 
 
@@ -360,21 +1150,32 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
      */
     @Override
     public V replace(final K key, final V value) {
-        return replaceIfValueIs(key, null, value);
+        return replaceIfValueIs(key, null, value, null);
     }
 
-
-    // TODO uncomment once tested -  HCOLL-16  implement map.size()
-
     /**
      * {@inheritDoc}
      */
-
+    @Override
+    public V replaceUsing(K key, V value, V previousValue) {
+        checkPreviousValue(previousValue);
+        return replaceIfValueIs(key, null, value, previousValue);
+    }
+
+
+    // TODO uncomment once tested -  HCOLL-16  implement map.size()
+
+    /**
+     * {@inheritDoc}
+     */
+
     public long longSize() {
         long result = 0;
 
-        for (final Segment segment : this.segments) {
-            result += segment.getSize();
+        // read from the headers, so segments not used yet aren't created.
+        for (int i = 0; i < segments.length(); i++) {
+            // any negative value is in error state.
+            result += Math.max(0, readSegmentInt(i, Segment.SIZE_OFFSET));
         }
 
         return result;
@@ -386,149 +1187,1315 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
         return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) size;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SharedMapTransaction<K, V> begin() throws IllegalStateException {
+        checkWritable();
+        if (!transactional)
+            throw new IllegalStateException("Transactions are not enabled, see SharedHashMapBuilder.transactional()");
+        return new Transaction();
+    }
+
+    /**
+     * @return the undo logs of transactions being committed, or null if not transactional.
+     */
+    TransactionLog transactionLog() {
+        return transactionLog;
+    }
+
+    /**
+     * Undo the writes of any transaction whose process died part way through committing it.  Must not hold a
+     * segment lock, as rolling back locks the segments written.
+     */
+    private void rollBackAbandonedTransactions() {
+        // a committer in another pid namespace would look dead.
+        if (!canCheckLiveness())
+            return;
+        for (long slot : transactionLog.abandonedSlots()) {
+            // another process could be rolling it back too.
+            if (!transactionLog.takeOver(slot))
+                continue;
+            if (transactionLog.isCommitting(slot)) {
+                LOGGER.warning("Rolling back a transaction which didn't finish committing");
+                rollBack(slot);
+            }
+            transactionLog.release(slot);
+        }
+    }
+
+    /**
+     * Restore the values from an undo log.  Locks each segment as needed.
+     */
+    private void rollBack(long slot) {
+        final MultiStoreBytes records = transactionLog.records(slot);
+        final DirectBytes valueBytes = new DirectStore(mappings[0].bytesMarshallerFactory(), entrySize, false).createSlice();
+        final int count = transactionLog.count(slot);
+        for (int i = 0; i < count; i++) {
+            final byte[] key = new byte[(int) records.readStopBit()];
+            records.readFully(key);
+            final DirectBytes keyBytes = acquireBytes();
+            keyBytes.write(key);
+            keyBytes.flip();
+            long hash = hasher.hash(keyBytes);
+            Segment segment = segment(hasher.getSegment(keyBytes, hash));
+            int segmentHash = hasher.segmentHash(hash);
+            if (records.readByte() == 0) {
+                segment.directRemove(keyBytes, segmentHash);
+            } else {
+                final byte[] value = new byte[(int) records.readStopBit()];
+                records.readFully(value);
+                valueBytes.clear();
+                valueBytes.write(value);
+                valueBytes.flip();
+                segment.directPut(keyBytes, valueBytes, segmentHash, null, null);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long recover() {
+        checkWritable();
+        final int segmentCount = segments.length();
+        final int threads = Math.min(segmentCount, Runtime.getRuntime().availableProcessors());
+        ExecutorService es = workers();
+        try {
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            for (int t = 0; t < threads; t++) {
+                final int first = t;
+                futures.add(es.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        long repaired = 0;
+                        for (int i = first; i < segmentCount; i += threads) {
+                            Segment segment = segment(i);
+                            segment.lock();
+                            try {
+                                repaired += segment.recover();
+                            } finally {
+                                segment.unlock();
+                            }
+                        }
+                        return repaired;
+                    }
+                }));
+            }
+            long repaired = 0;
+            for (Future<Long> future : futures)
+                repaired += future.get();
+            return repaired;
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Apply the memory advice for the index and entries of every segment, logging any which can't be applied.
+     */
+    private void adviseMemory() {
+        if (!NativeMemory.isAvailable()) {
+            LOGGER.warning("Memory advice for " + file() + " ignored, it needs JNA on 64-bit Linux");
+            return;
+        }
+        Set<SharedMapMemoryAdvice> failed = EnumSet.noneOf(SharedMapMemoryAdvice.class);
+        // as laid out by Segment, which isn't created here so segments are still only created when first used.
+        final long entriesOffset = SharedHashMapBuilder.SEGMENT_HEADER + sizeOfMultiMap()
+                + numberOfBitSets() * sizeOfBitSets();
+        for (int i = 0; i < segments.length(); i++) {
+            final long start = shardBytes[i % shards].startAddr() + segmentOffset(i / shards);
+            for (SharedMapMemoryAdvice advice : indexMemoryAdvice)
+                if (!advice.apply(start, entriesOffset))
+                    failed.add(advice);
+            for (SharedMapMemoryAdvice advice : entryMemoryAdvice)
+                if (!advice.apply(start + entriesOffset, (long) entriesPerSegment * entrySize))
+                    failed.add(advice);
+        }
+        if (!failed.isEmpty())
+            LOGGER.warning("Unable to apply memory advice " + failed + " to " + file()
+                    + ", errno: " + NativeMemory.lastError());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long pretouch(final SharedMapPretouch mode) {
+        if (mode == SharedMapPretouch.NONE)
+            return 0;
+        final int segmentCount = segments.length();
+        final long start = System.nanoTime();
+        // the file header is in the first page of the first segment.
+        long pages = 0;
+        final int threads = Math.min(segmentCount, Runtime.getRuntime().availableProcessors());
+        final AtomicInteger done = new AtomicInteger();
+        final int reportEvery = Math.max(1, segmentCount / 10);
+        ExecutorService es = workers();
+        try {
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            for (int t = 0; t < threads; t++) {
+                final int first = t;
+                futures.add(es.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        long touched = 0;
+                        for (int i = first; i < segmentCount; i += threads) {
+                            touched += segment(i).pretouch(mode == SharedMapPretouch.ALL);
+                            int count = done.incrementAndGet();
+                            if (count % reportEvery == 0 || count == segmentCount)
+                                LOGGER.info(file() + " pretouched " + count + " of " + segmentCount + " segments");
+                        }
+                        return touched;
+                    }
+                }));
+            }
+            for (Future<Long> future : futures)
+                pages += future.get();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        LOGGER.info(file() + " pretouched " + pages + " pages in " + (System.nanoTime() - start) / 1000000 + " ms");
+        return pages;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long lockWaitNanos() {
+        long result = 0;
+        for (int i = 0; i < segments.length(); i++)
+            result += readSegmentLong(i, Segment.LOCK_WAIT_NANOS_OFFSET);
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long contendedLocks() {
+        long result = 0;
+        for (int i = 0; i < segments.length(); i++)
+            result += readSegmentLong(i, Segment.LOCK_WAIT_COUNT_OFFSET);
+        return result;
+    }
+
     /**
      * replace the value in a map, only if the existing entry equals {@param existingValue}
      *
      * @param key           the key into the map
      * @param existingValue the expected existing value in the map ( could be null when we don't wish to do this check )
      * @param newValue      the new value you wish to store in the map
+     * @param previousValue to copy the value replaced into, or null
      * @return the value that was replaced
      */
-    private V replaceIfValueIs(@NotNull final K key, final V existingValue, final V newValue) {
+    private V replaceIfValueIs(@NotNull final K key, final V existingValue, final V newValue, final V previousValue) {
+        checkWritable();
         checkKey(key);
         checkValue(newValue);
         final DirectBytes bytes = getKeyAsBytes(key);
         long hash = hasher.hash(bytes);
-        int segmentNum = hasher.getSegment(hash);
+        int segmentNum = hasher.getSegment(bytes, hash);
         int segmentHash = hasher.segmentHash(hash);
-        return segments[segmentNum].replace(bytes, key, existingValue, newValue, segmentHash);
+        if (flatCombining)
+            return segment(segmentNum).combine(acquireCombinedOp().replace(bytes, key, existingValue, newValue, segmentHash, previousValue));
+        return segment(segmentNum).replace(bytes, key, existingValue, newValue, segmentHash, previousValue);
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V tryGet(K key, V value, long timeOutNS) throws SharedMapBusyException {
+        return tryLookupUsing(key, value, false, timeOutNS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V tryAcquireUsing(K key, V value, long timeOutNS) throws SharedMapBusyException {
+        return tryLookupUsing(key, value, true, timeOutNS);
+    }
+
+    private V tryLookupUsing(K key, V value, boolean create, long timeOutNS) {
+        if (create)
+            checkWritable();
+        checkKey(key);
+        DirectBytes bytes = getKeyAsBytes(key);
+        long hash = hasher.hash(bytes);
+        Segment segment = segment(hasher.getSegment(bytes, hash));
+        int segmentHash = hasher.segmentHash(hash);
+        if (lockFreeReads && !create)
+            return segment.acquire(bytes, key, value, segmentHash, false);
+        lockOrBusy(segment, timeOutNS);
+        try {
+            return segment.acquire(bytes, key, value, segmentHash, create);
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V tryPut(K key, V value, long timeOutNS) throws SharedMapBusyException {
+        checkWritable();
+        checkKey(key);
+        checkValue(value);
+        DirectBytes bytes = getKeyAsBytes(key);
+        long hash = hasher.hash(bytes);
+        Segment segment = segment(hasher.getSegment(bytes, hash));
+        int segmentHash = hasher.segmentHash(hash);
+        lockOrBusy(segment, timeOutNS);
+        try {
+            return segment.put(bytes, key, value, segmentHash, true, null);
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V tryRemove(K key, long timeOutNS) throws SharedMapBusyException {
+        checkWritable();
+        checkKey(key);
+        DirectBytes bytes = getKeyAsBytes(key);
+        long hash = hasher.hash(bytes);
+        Segment segment = segment(hasher.getSegment(bytes, hash));
+        int segmentHash = hasher.segmentHash(hash);
+        lockOrBusy(segment, timeOutNS);
+        try {
+            return segment.remove(bytes, key, null, segmentHash, null);
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Lock a segment for a try method.  The segment methods called while it is held lock it again, which
+     * succeeds immediately.
+     */
+    private void lockOrBusy(Segment segment, long timeOutNS) throws SharedMapBusyException {
+        if (!segment.tryLock(timeOutNS))
+            throw SharedMapBusyException.BUSY;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getVersion(K key) throws IllegalStateException {
+        checkVersionedEntries();
+        checkKey(key);
+        DirectBytes bytes = getKeyAsBytes(key);
+        long hash = hasher.hash(bytes);
+        int segmentNum = hasher.getSegment(bytes, hash);
+        int segmentHash = hasher.segmentHash(hash);
+        return segment(segmentNum).version(bytes, segmentHash);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V getUsing(K key, V value, long[] version) throws IllegalStateException {
+        checkVersionedEntries();
+        checkKey(key);
+        DirectBytes bytes = getKeyAsBytes(key);
+        long hash = hasher.hash(bytes);
+        int segmentNum = hasher.getSegment(bytes, hash);
+        int segmentHash = hasher.segmentHash(hash);
+        return segment(segmentNum).acquire(bytes, key, value, segmentHash, false, version);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean putIfVersion(K key, V value, long expectedVersion) throws IllegalStateException {
+        checkWritable();
+        checkVersionedEntries();
+        checkKey(key);
+        checkValue(value);
+        DirectBytes bytes = getKeyAsBytes(key);
+        long hash = hasher.hash(bytes);
+        int segmentNum = hasher.getSegment(bytes, hash);
+        int segmentHash = hasher.segmentHash(hash);
+        return segment(segmentNum).putIfVersion(bytes, key, value, segmentHash, expectedVersion);
+    }
+
+    private void checkWritable() {
+        if (readOnly)
+            throw new UnsupportedOperationException("The map was opened read only, see SharedHashMapBuilder.readOnly()");
+    }
+
+    private void checkVersionedEntries() {
+        if (!versionedEntries)
+            throw new IllegalStateException("Entries are not versioned, see SharedHashMapBuilder.versionedEntries()");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void lockEntry(V value) throws IllegalStateException {
+        Segment segment = segmentFor(value);
+        segment.lockEntry(segment.entryLockOffset((Byteable) value));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean tryLockEntry(V value) {
+        Segment segment = segmentFor(value);
+        return lockStrategy.tryLock(segment.bytes, segment.entryLockOffset((Byteable) value));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void unlockEntry(V value) throws IllegalMonitorStateException {
+        Segment segment = segmentFor(value);
+        try {
+            lockStrategy.unlock(segment.bytes, segment.entryLockOffset((Byteable) value));
+        } catch (IllegalMonitorStateException e) {
+            errorListener.errorOnUnlock(e);
+        }
+    }
+
+    /**
+     * Find the segment a value obtained from getUsing() or acquireUsing() refers to.
+     */
+    private Segment segmentFor(V value) {
+        // entry locks are written to the entry.
+        checkWritable();
+        if (!entryLocking)
+            throw new IllegalStateException("Entry locking is not enabled, see SharedHashMapBuilder.entryLocking()");
+        if (!(value instanceof Byteable))
+            throw new IllegalArgumentException("Only a Byteable value can refer to an entry, was " + value);
+        Bytes bytes = ((Byteable) value).bytes();
+        if (bytes instanceof NativeBytes) {
+            NativeBytes nb = (NativeBytes) bytes;
+            for (int shard = 0; shard < shards; shard++) {
+                long index = (nb.startAddr() - shardBytes[shard].startAddr() - SharedHashMapBuilder.HEADER_SIZE) / segmentSize();
+                long segmentNum = index * shards + shard;
+                if (index < 0 || segmentNum >= segments.length())
+                    continue;
+                // the value was read from this segment, so it has been created.
+                Segment segment = segments.get((int) segmentNum);
+                if (segment != null && segment.bytes == nb)
+                    return segment;
+            }
+        }
+        throw new IllegalArgumentException("The value does not refer to an entry in this map");
+    }
+
+    /**
+     * A key marshalled once, so it can be compared by its bytes and found again on commit.
+     */
+    final class TransactionKey {
+        final byte[] bytes;
+        final K key;
+        final int segmentNum;
+        final int segmentHash;
+
+        TransactionKey(K key) {
+            checkKey(key);
+            DirectBytes keyBytes = getKeyAsBytes(key);
+            long hash = hasher.hash(keyBytes);
+            this.key = key;
+            this.segmentNum = hasher.getSegment(keyBytes, hash);
+            this.segmentHash = hasher.segmentHash(hash);
+            this.bytes = new byte[(int) keyBytes.remaining()];
+            keyBytes.readFully(bytes);
+        }
+
+        /**
+         * @return the key as bytes in the thread local buffer.
+         */
+        DirectBytes keyBytes() {
+            DirectBytes keyBytes = acquireBytes();
+            keyBytes.write(bytes);
+            keyBytes.flip();
+            return keyBytes;
+        }
+
+        Segment segment() {
+            return VanillaSharedHashMap.this.segment(segmentNum);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof VanillaSharedHashMap.TransactionKey
+                    && Arrays.equals(bytes, ((VanillaSharedHashMap.TransactionKey) o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(bytes);
+        }
+    }
+
+    final class Transaction implements SharedMapTransaction<K, V> {
+        // the bytes of each value read, or null if absent.
+        private final Map<TransactionKey, byte[]> reads = new LinkedHashMap<TransactionKey, byte[]>();
+        // the value to write for each key, or null to remove it.
+        private final Map<TransactionKey, V> writes = new LinkedHashMap<TransactionKey, V>();
+        private final DirectBytes valueBytes = new DirectStore(mappings[0].bytesMarshallerFactory(), entrySize, false).createSlice();
+        private boolean finished = false;
+
+        @Override
+        public V get(K key) {
+            checkNotFinished();
+            TransactionKey tk = new TransactionKey(key);
+            if (writes.containsKey(tk))
+                return writes.get(tk);
+            byte[] value;
+            if (reads.containsKey(tk)) {
+                value = reads.get(tk);
+            } else {
+                value = tk.segment().valueBytes(tk.keyBytes(), tk.segmentHash);
+                reads.put(tk, value);
+            }
+            return value == null ? null : readValue(value);
+        }
+
+        @SuppressWarnings("unchecked")
+        private V readValue(byte[] value) {
+            valueBytes.clear();
+            valueBytes.write(value);
+            valueBytes.flip();
+            if (generatedValueType) {
+                V v = DataValueClasses.newInstance(vClass);
+                ((BytesMarshallable) v).readMarshallable(valueBytes);
+                return v;
+            }
+            return valueBytes.readInstance(vClass, null);
+        }
+
+        @Override
+        public void put(K key, V value) {
+            checkNotFinished();
+            checkValue(value);
+            writes.put(new TransactionKey(key), value);
+        }
+
+        @Override
+        public void remove(K key) {
+            checkNotFinished();
+            writes.put(new TransactionKey(key), null);
+        }
+
+        @Override
+        public boolean commit() throws IllegalStateException {
+            checkNotFinished();
+            if (writes.size() > TransactionLog.MAX_WRITES)
+                throw new IllegalStateException("A transaction can write at most " + TransactionLog.MAX_WRITES
+                        + " keys, was " + writes.size());
+            finished = true;
+            // taken before the locks, as it can roll back the transactions of a committer which died.
+            final long slot = writes.isEmpty() ? -1 : acquireSlot();
+            final int[] segmentNums = segmentsUsed();
+            int locked = 0;
+            try {
+                for (; locked < segmentNums.length; locked++)
+                    segment(segmentNums[locked]).lock();
+                for (Map.Entry<TransactionKey, byte[]> entry : reads.entrySet()) {
+                    TransactionKey tk = entry.getKey();
+                    if (!Arrays.equals(entry.getValue(), tk.segment().valueBytes(tk.keyBytes(), tk.segmentHash)))
+                        return false;
+                }
+                if (slot >= 0)
+                    apply(slot);
+                return true;
+            } finally {
+                // released before unlocking, so a commit which is visible is never rolled back.
+                if (slot >= 0)
+                    transactionLog.release(slot);
+                while (locked > 0)
+                    segment(segmentNums[--locked]).unlock();
+            }
+        }
+
+        /**
+         * Take a slot in the transaction log, waiting for one if they are all in use.  The transactions of any
+         * committer which died are rolled back first, so its half applied writes don't stay visible and its slot
+         * isn't lost until the map is opened again.
+         */
+        private long acquireSlot() {
+            final long id = SharedMapLockStrategies.lockId();
+            while (true) {
+                rollBackAbandonedTransactions();
+                long slot = transactionLog.tryAcquire(id);
+                if (slot >= 0)
+                    return slot;
+                Thread.yield();
+            }
+        }
+
+        /**
+         * Write the undo log, then the writes.  Must hold the locks of every segment written.
+         */
+        private void apply(long slot) {
+            writeUndoLog(slot);
+            try {
+                for (Map.Entry<TransactionKey, V> entry : writes.entrySet()) {
+                    TransactionKey tk = entry.getKey();
+                    if (entry.getValue() == null)
+                        tk.segment().remove(tk.keyBytes(), tk.key, null, tk.segmentHash, null);
+                    else
+                        tk.segment().put(tk.keyBytes(), tk.key, entry.getValue(), tk.segmentHash, true, null);
+                }
+            } catch (RuntimeException e) {
+                rollBack(slot);
+                throw e;
+            }
+        }
+
+        /**
+         * Record the value before the commit of each key written, and mark the slot as committing.
+         */
+        void writeUndoLog(long slot) {
+            final MultiStoreBytes records = transactionLog.records(slot);
+            for (TransactionKey tk : writes.keySet()) {
+                byte[] value = tk.segment().valueBytes(tk.keyBytes(), tk.segmentHash);
+                records.writeStopBit(tk.bytes.length);
+                records.write(tk.bytes);
+                if (value == null) {
+                    records.writeByte(0);
+                } else {
+                    records.writeByte(1);
+                    records.writeStopBit(value.length);
+                    records.write(value);
+                }
+            }
+            transactionLog.committing(slot, writes.size());
+        }
+
+        /**
+         * @return the segments of every key read or written, in ascending order.
+         */
+        private int[] segmentsUsed() {
+            BitSet used = new BitSet(segments.length());
+            for (TransactionKey tk : reads.keySet())
+                used.set(tk.segmentNum);
+            for (TransactionKey tk : writes.keySet())
+                used.set(tk.segmentNum);
+            int[] segmentNums = new int[used.cardinality()];
+            for (int i = used.nextSetBit(0), j = 0; i >= 0; i = used.nextSetBit(i + 1))
+                segmentNums[j++] = i;
+            return segmentNums;
+        }
+
+        @Override
+        public void rollback() {
+            finished = true;
+            reads.clear();
+            writes.clear();
+        }
+
+        private void checkNotFinished() {
+            if (finished)
+                throw new IllegalStateException("Transaction already committed or rolled back");
+        }
+    }
+
     static final class Hasher<K> {
 
         private final int segments;
 
         private final int bits;
 
-        private final int mask;
+        private final int mask;
+
+        private final SharedMapSegmentSelector selector;
+
+        Hasher(int segments, int mask, SharedMapSegmentSelector selector) {
+            this.segments = segments;
+            this.bits = Maths.intLog2(segments);
+            this.mask = mask;
+            this.selector = selector;
+        }
+
+        final long hash(Bytes bytes) {
+            return hash(bytes, 0, bytes.limit());
+        }
+
+        /**
+         * @return the hash of the bytes from start to limit.
+         */
+        static long hash(Bytes bytes, long start, long limit) {
+            long h = 0;
+            long i = start;
+            for (; i < limit - 7; i += 8)
+                h = 1011001110001111L * h + bytes.readLong(i);
+            for (; i < limit - 1; i += 2)
+                h = 101111 * h + bytes.readShort(i);
+            if (i < limit)
+                h = 2111 * h + bytes.readByte(i);
+            h *= 11018881818881011L;
+            h ^= (h >>> 41) ^ (h >>> 21);
+            //System.out.println(bytes + " => " + Long.toHexString(h));
+            return h;
+        }
+
+        final int segmentHash(long hash) {
+            return (int) (hash >>> bits) & mask;
+        }
+
+        /**
+         * @param bytes the marshalled key
+         * @param hash  of the key
+         * @return the segment chosen for the key by the selector.
+         */
+        public final int getSegment(Bytes bytes, long hash) {
+            return (int) (selector.partitionHash(bytes, hash) & (segments - 1));
+        }
+    }
+
+    // these methods should be package local, not public or private.
+    class Segment {
+        /*
+        The entry format is
+        - stop-bit encoded length for key
+        - bytes for the key
+        - stop-bit encoded length of the value
+        - bytes for the value.
+         */
+        static final int LOCK_OFFSET = 0; // 64-bit
+        static final int SIZE_OFFSET = LOCK_OFFSET + 8; // 32-bit
+        static final int FREE_HINT_OFFSET = SIZE_OFFSET + 4; // 32-bit, no free entry is below this one.
+        static final int REPLICA_OFFSET = FREE_HINT_OFFSET + 4; // 64-bit
+        static final int GENERATION_OFFSET = REPLICA_OFFSET + 8; // 64-bit, odd while the segment is locked to change it.
+        static final int LOCK_WAIT_NANOS_OFFSET = GENERATION_OFFSET + 8; // 64-bit, total time spent waiting for the lock.
+        static final int LOCK_WAIT_COUNT_OFFSET = LOCK_WAIT_NANOS_OFFSET + 8; // 64-bit, times the lock wasn't free.
+        static final int VERSION_SEQ_OFFSET = LOCK_WAIT_COUNT_OFFSET + 8; // 64-bit, the last entry version used.
+        static final int DIRTY_OFFSET = VERSION_SEQ_OFFSET + 8; // 32-bit, 1 if changed since it was last synced.
+
+        final NativeBytes bytes;
+        final int index;
+        private final MultiStoreBytes tmpBytes = new MultiStoreBytes();
+        private final MultiStoreBytes recoverBytes = new MultiStoreBytes();
+        // the entries the index referred to, allocated by the first recover() and reused by later ones.
+        private SingleThreadedDirectBitSet recoverIndexed;
+        private final WriterLock writerLock = singleWriter ? new WriterLock() : null;
+        private final AtomicReferenceArray<CombinedOp> combiningSlots =
+                flatCombining ? new AtomicReferenceArray<CombinedOp>(COMBINING_SLOTS) : null;
+        // the thread in this process holding the lock, and how many times.
+        private Thread lockOwner = null;
+        private int lockHolds = 0;
+        // the segment has been changed under the lock held, so the generation is odd.
+        private boolean changing = false;
+        private final IntIntMultiMap hashLookup;
+        private final SingleThreadedDirectBitSet freeList;
+        private final long entriesOffset;
+
+        Segment(NativeBytes bytes, int index) {
+            this.bytes = bytes;
+            this.index = index;
+
+            long start = bytes.startAddr() + SharedHashMapBuilder.SEGMENT_HEADER;
+            final NativeBytes iimmapBytes = new NativeBytes(null, start, start + sizeOfMultiMap(), null);
+            iimmapBytes.load();
+            hashLookup = hashMask == ~0 ? new VanillaIntIntMultiMap(iimmapBytes) : new VanillaShortShortMultiMap(iimmapBytes);
+            start += sizeOfMultiMap();
+            final NativeBytes bsBytes = new NativeBytes(tmpBytes.bytesMarshallerFactory(), start, start + sizeOfBitSets(), null);
+            freeList = new SingleThreadedDirectBitSet(bsBytes);
+            start += numberOfBitSets() * sizeOfBitSets();
+            entriesOffset = start - bytes.startAddr();
+            assert entriesOffset == SharedHashMapBuilder.SEGMENT_HEADER + sizeOfMultiMap()
+                    + numberOfBitSets() * sizeOfBitSets();
+            assert bytes.capacity() >= entriesOffset + entriesPerSegment * entrySize;
+        }
+
+        /**
+         * @return the offset of the entry at pos, after the lock word and version if there are any.
+         */
+        long entryOffset(int pos) {
+            return entriesOffset + (long) pos * entrySize + entryHeaderBytes;
+        }
+
+        /**
+         * @return the offset of the lock word of the entry a value refers to.
+         */
+        long entryLockOffset(Byteable value) {
+            long pos = (value.offset() - entriesOffset) / entrySize;
+            if (pos < 0 || pos >= entriesPerSegment)
+                throw new IllegalArgumentException("The value does not refer to an entry in this map");
+            return entriesOffset + pos * entrySize;
+        }
+
+        void lockEntry(long lockOffset) throws IllegalStateException {
+            if (lockStrategy.tryLock(bytes, lockOffset))
+                return;
+            // only the value is changed under an entry lock, so there is no structure to check if forced.
+            waitForLock(lockOffset);
+        }
+
+        /**
+         * increments the size by one
+         */
+        private void incrementSize() {
+            this.bytes.addInt(SIZE_OFFSET, 1);
+        }
+
+        public void resetSize() {
+            this.bytes.writeInt(SIZE_OFFSET, 0);
+        }
+
+        /**
+         * decrements the size by one
+         */
+        private void decrementSize() {
+            this.bytes.addInt(SIZE_OFFSET, -1);
+        }
+
+        /**
+         * reads the the number of entries in this segment
+         */
+        int getSize() {
+            // any negative value is in error state.
+            return Math.max(0, this.bytes.readVolatileInt(SIZE_OFFSET));
+        }
+
+
+        void lock() throws IllegalStateException {
+            if (singleWriter) {
+                lockWriter();
+                return;
+            }
+            final Thread thread = currentThread();
+            if (lockOwner == thread) {
+                lockHolds++;
+                return;
+            }
+            boolean forced = false;
+            if (!lockStrategy.tryLock(bytes, LOCK_OFFSET)) {
+                final long start = System.nanoTime();
+                forced = waitForLock(LOCK_OFFSET);
+                // safe to update as we hold the lock now.
+                bytes.addLong(LOCK_WAIT_NANOS_OFFSET, System.nanoTime() - start);
+                bytes.addLong(LOCK_WAIT_COUNT_OFFSET, 1);
+            }
+            // the previous holder may have been part way through a change.
+            if (forced)
+                recover();
+            lockOwner = thread;
+            lockHolds = 1;
+        }
+
+        /**
+         * Wait for a lock, checking whether the holder is still alive every so often so the lock of a process
+         * which died can be released without waiting for the whole time out.
+         *
+         * @return true if the lock had to be released from its previous holder.
+         */
+        private boolean waitForLock(long lockOffset) throws IllegalStateException {
+            boolean forced = false;
+            boolean locked = false;
+            long start = System.nanoTime();
+            long checkNS = LIVENESS_CHECK_NS;
+            try {
+                while (!lockStrategy.tryLock(bytes, lockOffset, Math.min(checkNS, lockTimeOutNS))) {
+                    if (currentThread().isInterrupted())
+                        throw new IllegalStateException(new InterruptedException("Unable to obtain lock, interrupted"));
+                    final long lockHolder = lockStrategy.lockHolder(bytes, lockOffset);
+                    final int processId = lockStrategy.processIdOf(lockHolder);
+                    if (isDead(processId)) {
+                        if (lockStrategy.forceUnlock(bytes, lockOffset, lockHolder)) {
+                            LOGGER.warning("Released lock held by processId: " + processId + " which is no longer running");
+                            forced = true;
+                        }
+                    } else if (System.nanoTime() - start >= lockTimeOutNS) {
+                        errorListener.onLockTimeout(lockHolder);
+                        lockStrategy.forceUnlock(bytes, lockOffset);
+                        forced = true;
+                        start = System.nanoTime();
+                    }
+                    checkNS = Math.min(checkNS * 2, MAX_LIVENESS_CHECK_NS);
+                }
+                locked = true;
+            } finally {
+                // e.g. interrupted or the error listener threw, so a queued place isn't left for others to wait on.
+                if (!locked)
+                    lockStrategy.cancelWait(bytes, lockOffset);
+            }
+            return forced;
+        }
+
+        /**
+         * Rebuild the index, free list and size of this segment from its entries, e.g. after a process died while
+         * changing it.  Must be called holding the lock.
+         * <p></p>
+         * An entry is kept only if it is both allocated in the free list and referred to by the old index, its
+         * lengths fit in the entry, its key hashes to this segment and no other entry has the same key.  An entry
+         * allocated but not indexed was either being added by a put() or freed by a remove() which died, so its
+         * value can't be trusted and it is freed.  Rebuilding the index closes any gap a removal left part way
+         * through shifting the index.
+         *
+         * @return the number of inconsistencies repaired.
+         */
+        int recover() {
+            beginChange();
+            final int[] indexEntries = {0};
+            if (recoverIndexed == null)
+                recoverIndexed = new SingleThreadedDirectBitSet(new DirectStore(null, sizeOfBitSets(), true).createSlice());
+            final SingleThreadedDirectBitSet indexed = recoverIndexed;
+            indexed.clear();
+            hashLookup.forEach(new IntIntMultiMap.EntryConsumer() {
+                @Override
+                public void accept(int hash, int pos) {
+                    indexEntries[0]++;
+                    if (pos >= 0 && pos < entriesPerSegment)
+                        indexed.set(pos);
+                }
+            });
+            hashLookup.clear();
+            int kept = 0, dropped = 0, notIndexed = 0;
+            for (int pos = 0; pos < entriesPerSegment; pos++) {
+                if (!freeList.isSet(pos))
+                    continue;
+                if (!indexed.isSet(pos)) {
+                    freeList.clear(pos);
+                    notIndexed++;
+                    continue;
+                }
+                final long hash2 = recoverHash(pos);
+                if (hash2 < 0 || containsRecoveredKey((int) hash2)) {
+                    freeList.clear(pos);
+                    dropped++;
+                    continue;
+                }
+                hashLookup.put((int) hash2, pos);
+                kept++;
+            }
+            final int size = bytes.readVolatileInt(SIZE_OFFSET);
+            bytes.writeOrderedInt(SIZE_OFFSET, kept);
+            setFreeHint(0);
+            // index entries which referred to a free entry, or to the same entry as another.
+            final int staleIndexEntries = indexEntries[0] - kept - dropped;
+            final int repaired = dropped + notIndexed + staleIndexEntries + (size == kept ? 0 : 1);
+            if (repaired > 0)
+                LOGGER.warning("Recovered segment " + index + ", dropped " + dropped + " entries, freed " + notIndexed
+                        + " entries not indexed and " + staleIndexEntries + " index entries, size was " + size
+                        + " now " + kept);
+            return repaired;
+        }
+
+        /**
+         * Check the entry at pos is well formed and belongs in this segment, leaving recoverBytes over its key.
+         *
+         * @return the hash to index the entry with, or -1 if it is not valid.
+         */
+        private long recoverHash(int pos) {
+            final long offset = entryOffset(pos) + metaDataBytes;
+            final long length = entrySize - entryHeaderBytes - metaDataBytes;
+            try {
+                tmpBytes.storePositionAndSize(bytes, offset, length);
+                final long keyLength = tmpBytes.readStopBit();
+                final long keyStart = tmpBytes.position();
+                if (keyLength < 0 || keyStart + keyLength > length)
+                    return -1;
+                tmpBytes.position(keyStart + keyLength);
+                final long valueLength = tmpBytes.readStopBit();
+                if (valueLength < 0 || align(tmpBytes.position()) + valueLength > length)
+                    return -1;
+                recoverBytes.storePositionAndSize(bytes, offset + keyStart, keyLength);
+                final long hash = hasher.hash(recoverBytes);
+                if (hasher.getSegment(recoverBytes, hash) != index)
+                    return -1;
+                return hasher.segmentHash(hash) & 0xFFFFFFFFL;
+            } catch (RuntimeException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * @return true if the key in recoverBytes has already been added to the index, i.e. a duplicate.
+         */
+        private boolean containsRecoveredKey(int hash2) {
+            recoverBytes.position(0);
+            hashLookup.startSearch(hash2);
+            for (int pos = hashLookup.nextPos(); pos >= 0; pos = hashLookup.nextPos()) {
+                tmpBytes.storePositionAndSize(bytes, entryOffset(pos) + metaDataBytes,
+                        entrySize - entryHeaderBytes - metaDataBytes);
+                if (keyEquals(recoverBytes, tmpBytes))
+                    return true;
+            }
+            return false;
+        }
+
+        void unlock() {
+            if (singleWriter) {
+                unlockWriter();
+                return;
+            }
+            if (lockOwner != currentThread()) {
+                errorListener.errorOnUnlock(new IllegalMonitorStateException("Segment not locked by this thread"));
+                return;
+            }
+            if (--lockHolds > 0)
+                return;
+            lockOwner = null;
+            endChange();
+            try {
+                lockStrategy.unlock(bytes, LOCK_OFFSET);
+            } catch (IllegalMonitorStateException e) {
+                errorListener.errorOnUnlock(e);
+            }
+        }
+
+        /**
+         * The single writer only excludes other threads in its own process, and makes the generation odd
+         * for as long as it is changing the segment so readers know to retry, see beginChange().
+         */
+        private void lockWriter() throws IllegalStateException {
+            checkWriter();
+            try {
+                while (!writerLock.tryLock(lockTimeOutNS, TimeUnit.NANOSECONDS))
+                    errorListener.onLockTimeout(writerLock.ownerThreadId());
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(new InterruptedException("Unable to obtain lock, interrupted"));
+            }
+        }
 
-        Hasher(int segments, int mask) {
-            this.segments = segments;
-            this.bits = Maths.intLog2(segments);
-            this.mask = mask;
+        /**
+         * Make the generation odd before the first change made while holding the lock, so readers which don't lock
+         * the segment, such as those of a read only map, know to retry, and mark the segment as changed.  Reads
+         * under the lock leave the generation alone.  Must hold the lock.
+         */
+        private void beginChange() {
+            if (changing)
+                return;
+            changing = true;
+            // the next odd number, even if a previous writer died part way through a change.
+            bytes.writeOrderedLong(GENERATION_OFFSET, (bytes.readLong(GENERATION_OFFSET) + 1) | 1);
+            markDirty();
         }
 
-        final long hash(Bytes bytes) {
-            long h = 0;
-            int i = 0;
-            long limit = bytes.limit(); // clustering.
-            for (; i < limit - 7; i += 8)
-                h = 1011001110001111L * h + bytes.readLong(i);
-            for (; i < limit - 1; i += 2)
-                h = 101111 * h + bytes.readShort(i);
-            if (i < limit)
-                h = 2111 * h + bytes.readByte(i);
-            h *= 11018881818881011L;
-            h ^= (h >>> 41) ^ (h >>> 21);
-            //System.out.println(bytes + " => " + Long.toHexString(h));
-            return h;
+        /**
+         * Make the generation even again, if the segment was changed.  Must hold the lock.
+         */
+        private void endChange() {
+            if (!changing)
+                return;
+            changing = false;
+            bytes.writeOrderedLong(GENERATION_OFFSET, bytes.readLong(GENERATION_OFFSET) + 1);
         }
 
-        final int segmentHash(long hash) {
-            return (int) (hash >>> bits) & mask;
+        /**
+         * Try once to lock the segment, without waiting.
+         *
+         * @return true if locked.
+         */
+        boolean tryLock() {
+            if (singleWriter) {
+                checkWriter();
+                return writerLock.tryLock();
+            }
+            final Thread thread = currentThread();
+            if (lockOwner == thread) {
+                lockHolds++;
+                return true;
+            }
+            if (!lockStrategy.tryLock(bytes, LOCK_OFFSET))
+                return false;
+            lockOwner = thread;
+            lockHolds = 1;
+            return true;
         }
 
-        public final int getSegment(long hash) {
-            return (int) (hash & (segments - 1));
+        /**
+         * @return the offset of the first entry, after the header, index and free lists.
+         */
+        long entriesOffset() {
+            return entriesOffset;
         }
-    }
 
-    // these methods should be package local, not public or private.
-    class Segment {
-        /*
-        The entry format is
-        - stop-bit encoded length for key
-        - bytes for the key
-        - stop-bit encoded length of the value
-        - bytes for the value.
+        /**
+         * Fault in the pages of this segment, from its header to the end of its free lists, or of its entries.
+         *
+         * @return the number of pages touched.
          */
-        static final int LOCK_OFFSET = 0; // 64-bit
-        static final int SIZE_OFFSET = LOCK_OFFSET + 8; // 32-bit
-        static final int PAD1_OFFSET = SIZE_OFFSET + 4; // 32-bit
-        static final int REPLICA_OFFSET = PAD1_OFFSET + 4; // 64-bit
+        long pretouch(boolean entries) {
+            final long end = entries ? entriesOffset + (long) entriesPerSegment * entrySize : entriesOffset;
+            final long startAddr = bytes.startAddr();
+            // start reading the pages from disk ahead of the loop, where available.
+            NativeMemory.madvise(startAddr, end, NativeMemory.MADV_WILLNEED, PAGE_SIZE);
+            // reading a hole in a sparse file only maps the zero page, and the first write still faults and allocates
+            // a block, so unless the blocks were preallocated, each page is written with the value it already has.
+            return touchPages(bytes, end, !readOnly && !preallocate);
+        }
 
-        private final NativeBytes bytes;
-        private final MultiStoreBytes tmpBytes = new MultiStoreBytes();
-        private final IntIntMultiMap hashLookup;
-        private final SingleThreadedDirectBitSet freeList;
-        private final long entriesOffset;
-        private int nextSet = 0;
+        /**
+         * Lock the segment, waiting no longer than a time out.  Unlike lock(), a holder which appears to have died
+         * isn't checked for, as that is left to a call which can afford to wait.
+         *
+         * @param timeOutNS the longest time to wait in nano-seconds, or 0 to try once.
+         * @return true if locked.
+         */
+        boolean tryLock(long timeOutNS) {
+            if (tryLock())
+                return true;
+            if (timeOutNS <= 0)
+                return false;
+            if (singleWriter) {
+                try {
+                    return writerLock.tryLock(timeOutNS, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    currentThread().interrupt();
+                    return false;
+                }
+            }
+            if (!lockStrategy.tryLock(bytes, LOCK_OFFSET, timeOutNS)) {
+                // so a queued place isn't left for others to wait on.
+                lockStrategy.cancelWait(bytes, LOCK_OFFSET);
+                return false;
+            }
+            lockOwner = currentThread();
+            lockHolds = 1;
+            return true;
+        }
 
-        Segment(NativeBytes bytes) {
-            this.bytes = bytes;
+        /**
+         * Publish a write for whichever thread holds the lock to perform along with any others waiting, so the
+         * lock changes hands once for many writes.  If the lock is free this thread performs them.
+         * <p></p>
+         * If no thread takes the write within the lock time out, it is withdrawn and performed after locking
+         * as usual.
+         */
+        V combine(CombinedOp op) {
+            final int slot = publish(op);
+            if (slot < 0) {
+                // every slot is in use.
+                lock();
+                try {
+                    op.execute(this);
+                } finally {
+                    unlock();
+                }
+                return op.takeResult();
+            }
+            final long start = System.nanoTime();
+            for (int spins = 0; !op.done; spins++) {
+                if (tryLock()) {
+                    try {
+                        combinePending();
+                    } finally {
+                        unlock();
+                    }
+                } else if (System.nanoTime() - start > lockTimeOutNS && combiningSlots.compareAndSet(slot, op, null)) {
+                    lock();
+                    try {
+                        op.execute(this);
+                    } finally {
+                        unlock();
+                    }
+                } else if (spins > COMBINING_SPINS) {
+                    Thread.yield();
+                }
+            }
+            return op.takeResult();
+        }
 
-            long start = bytes.startAddr() + SharedHashMapBuilder.SEGMENT_HEADER;
-            final NativeBytes iimmapBytes = new NativeBytes(null, start, start + sizeOfMultiMap(), null);
-            iimmapBytes.load();
-            hashLookup = hashMask == ~0 ? new VanillaIntIntMultiMap(iimmapBytes) : new VanillaShortShortMultiMap(iimmapBytes);
-            start += sizeOfMultiMap();
-            final NativeBytes bsBytes = new NativeBytes(tmpBytes.bytesMarshallerFactory(), start, start + sizeOfBitSets(), null);
-            freeList = new SingleThreadedDirectBitSet(bsBytes);
-            start += numberOfBitSets() * sizeOfBitSets();
-            entriesOffset = start - bytes.startAddr();
-            assert bytes.capacity() >= entriesOffset + entriesPerSegment * entrySize;
+        private int publish(CombinedOp op) {
+            final int start = (int) (currentThread().getId() % COMBINING_SLOTS);
+            for (int i = 0; i < COMBINING_SLOTS; i++) {
+                final int slot = (start + i) % COMBINING_SLOTS;
+                if (combiningSlots.get(slot) == null && combiningSlots.compareAndSet(slot, null, op))
+                    return slot;
+            }
+            return -1;
         }
 
         /**
-         * increments the size by one
+         * Perform every write published.  Must hold the lock.
          */
-        private void incrementSize() {
-            this.bytes.addInt(SIZE_OFFSET, 1);
+        private void combinePending() {
+            for (int i = 0; i < COMBINING_SLOTS; i++) {
+                final CombinedOp op = combiningSlots.get(i);
+                // take the write so it can't be withdrawn as well.
+                if (op != null && combiningSlots.compareAndSet(i, op, null))
+                    op.execute(this);
+            }
         }
 
-        public void resetSize() {
-            this.bytes.writeInt(SIZE_OFFSET, 0);
+        private void unlockWriter() {
+            if (!writerLock.isHeldByCurrentThread()) {
+                errorListener.errorOnUnlock(new IllegalMonitorStateException("Segment not locked by this thread"));
+                return;
+            }
+            if (writerLock.getHoldCount() == 1)
+                endChange();
+            writerLock.unlock();
         }
 
         /**
-         * decrements the size by one
+         * Wait for the writer to finish any change in progress.
+         *
+         * @return the even generation to validate a read against.
+         * @throws IllegalStateException if the writer died part way through a change, or didn't finish it within
+         *                               the lock time out, as the segment can't be read consistently until a writer
+         *                               repairs it.
          */
-        private void decrementSize() {
-            this.bytes.addInt(SIZE_OFFSET, -1);
+        private long stableGeneration() throws IllegalStateException {
+            long generation = bytes.readVolatileLong(GENERATION_OFFSET);
+            if ((generation & 1) == 0)
+                return generation;
+            final long start = System.nanoTime();
+            long now = start, nextCheck = start + LIVENESS_CHECK_NS;
+            do {
+                generation = bytes.readVolatileLong(GENERATION_OFFSET);
+                if ((generation & 1) == 0)
+                    return generation;
+                now = System.nanoTime();
+                if (now - nextCheck >= 0) {
+                    // no need to wait out the time out for a writer which has died.
+                    final int processId = lockStrategy.processIdOf(lockStrategy.lockHolder(bytes, LOCK_OFFSET));
+                    if (isDead(processId))
+                        throw new IllegalStateException("Segment " + index + " was left part way through a change by"
+                                + " processId: " + processId + " which is no longer running");
+                    nextCheck = now + LIVENESS_CHECK_NS;
+                }
+            } while (now - start < lockTimeOutNS);
+            errorListener.onLockTimeout(lockStrategy.lockHolder(bytes, LOCK_OFFSET));
+            throw new IllegalStateException("Segment " + index + " was part way through a change for longer than"
+                    + " the lock time out");
+        }
+
+        private boolean validate(long generation) {
+            // the entry was read with plain loads, which may otherwise be reordered after this volatile load.
+            loadFence();
+            return bytes.readVolatileLong(GENERATION_OFFSET) == generation;
         }
 
         /**
-         * reads the the number of entries in this segment
+         * Search for a key without locking the segment, or changing the segment in any way.
+         *
+         * @return the offset of the entry after its meta data with context.bytes positioned after the key,
+         * or -1 if not found.
          */
-        int getSize() {
-            // any negative value is in error state.
-            return Math.max(0, this.bytes.readVolatileInt(SIZE_OFFSET));
+        private long find(ReadContext context, Bytes keyBytes, int hash2) {
+            final MultiStoreBytes entry = context.bytes;
+            hashLookup.startSearch(context.cursor, hash2);
+            while (true) {
+                final int pos = hashLookup.nextPos(context.cursor);
+                if (pos < 0)
+                    return -1;
+                final long offset = entryOffset(pos) + metaDataBytes;
+                entry.storePositionAndSize(bytes, offset, entrySize - entryHeaderBytes - metaDataBytes);
+                if (keyEquals(keyBytes, entry)) {
+                    entry.skip(keyBytes.remaining());
+                    return offset;
+                }
+            }
         }
 
+        /**
+         * A get() in single writer or read only mode.  The entry is read and then the generation is checked to see
+         * whether the writer changed the segment while it was being read, in which case the read is repeated.
+         * <p></p>
+         * A Byteable value refers to the entry directly, so it can still see later changes once returned.
+         */
+        V readUsing(DirectBytes keyBytes, K key, V usingValue, int hash2, long[] version) {
+            final ReadContext context = acquireReadContext();
+            while (true) {
+                final long generation = stableGeneration();
+                final long offset;
+                long entryVersion = 0;
+                V v = null;
+                try {
+                    offset = find(context, keyBytes, hash2);
+                    if (offset >= 0) {
+                        if (version != null)
+                            entryVersion = bytes.readVolatileLong(offset - metaDataBytes - SharedHashMapBuilder.ENTRY_VERSION_SIZE);
+                        final MultiStoreBytes entry = context.bytes;
+                        entry.readStopBit();
+                        entry.position(align(entry.position()));
+                        v = readObjectUsing(entry, usingValue, offset + entry.position());
+                    }
+                } catch (RuntimeException e) {
+                    // a torn read of an entry being changed can look corrupt.
+                    if (validate(generation))
+                        throw e;
+                    continue;
+                }
+                if (!validate(generation))
+                    continue;
+                if (version != null)
+                    version[0] = entryVersion;
+                if (offset < 0)
+                    return notifyMissed(keyBytes, key, usingValue, hash2);
+                if (eventListener != SharedMapEventListeners.NOP) {
+                    context.bytes.storePositionAndSize(bytes, offset - metaDataBytes, entrySize - entryHeaderBytes);
+                    eventListener.onGetFound(VanillaSharedHashMap.this, context.bytes, metaDataBytes, key, v);
+                }
+                return v;
+            }
+        }
 
-        void lock() throws IllegalStateException {
+        /**
+         * A containsKey() in single writer or read only mode.
+         */
+        boolean readContainsKey(DirectBytes keyBytes, int hash2) {
+            final ReadContext context = acquireReadContext();
             while (true) {
-                final boolean success = bytes.tryLockNanosLong(LOCK_OFFSET, lockTimeOutNS);
-                if (success) return;
-                if (currentThread().isInterrupted()) {
-                    throw new IllegalStateException(new InterruptedException("Unable to obtain lock, interrupted"));
-                } else {
-                    errorListener.onLockTimeout(bytes.threadIdForLockLong(LOCK_OFFSET));
-                    bytes.resetLockLong(LOCK_OFFSET);
+                final long generation = stableGeneration();
+                final boolean found;
+                try {
+                    found = find(context, keyBytes, hash2) >= 0;
+                } catch (RuntimeException e) {
+                    if (validate(generation))
+                        throw e;
+                    continue;
                 }
+                if (validate(generation))
+                    return found;
             }
         }
 
-        void unlock() {
+
+        /**
+         * Copy the bytes of the value for a key, so a transaction can check later that it hasn't changed.
+         *
+         * @return the bytes of the value, or null if there is no entry for the key.
+         */
+        byte[] valueBytes(final DirectBytes keyBytes, final int hash2) {
+            lock();
             try {
-                bytes.unlockLong(LOCK_OFFSET);
-            } catch (IllegalMonitorStateException e) {
-                errorListener.errorOnUnlock(e);
+                hashLookup.startSearch(hash2);
+                for (int pos = hashLookup.nextPos(); pos >= 0; pos = hashLookup.nextPos()) {
+                    final long offset = entryOffset(pos) + metaDataBytes;
+                    tmpBytes.storePositionAndSize(bytes, offset, entrySize - entryHeaderBytes - metaDataBytes);
+                    if (!keyEquals(keyBytes, tmpBytes))
+                        continue;
+                    tmpBytes.skip(keyBytes.remaining());
+                    final long valueLength = tmpBytes.readStopBit();
+                    tmpBytes.position(align(tmpBytes.position()));
+                    final byte[] value = new byte[(int) valueLength];
+                    tmpBytes.readFully(value);
+                    return value;
+                }
+                return null;
+            } finally {
+                unlock();
             }
         }
 
-
         /**
          * used to acquire and object of type V from the map,
          * <p></p>
@@ -551,17 +2518,28 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
          * @return an entry.value whose entry.key equals {@param keyBytes}
          */
         V acquire(DirectBytes keyBytes, K key, V usingValue, int hash2, boolean create) {
+            return acquire(keyBytes, key, usingValue, hash2, create, null);
+        }
+
+        /**
+         * @param version if not null, its first element is set to the version of the entry found, or 0 if none was.
+         */
+        V acquire(DirectBytes keyBytes, K key, V usingValue, int hash2, boolean create, long[] version) {
+            if (lockFreeReads && !create)
+                return readUsing(keyBytes, key, usingValue, hash2, version);
             lock();
             try {
                 hash2 = hashLookup.startSearch(hash2);
                 while (true) {
                     int pos = hashLookup.nextPos();
                     if (pos < 0) {
+                        if (version != null)
+                            version[0] = 0;
                         return create ? acquireEntry(keyBytes, key, usingValue, hash2) : notifyMissed(keyBytes, key, usingValue, hash2);
 
                     } else {
-                        final long offset = entriesOffset + pos * entrySize + metaDataBytes;
-                        tmpBytes.storePositionAndSize(bytes, offset, entrySize - metaDataBytes);
+                        final long offset = entryOffset(pos) + metaDataBytes;
+                        tmpBytes.storePositionAndSize(bytes, offset, entrySize - entryHeaderBytes - metaDataBytes);
                         final boolean miss;
                         if (LOGGER.isLoggable(Level.FINE)) {
                             final long start0 = System.nanoTime();
@@ -574,6 +2552,8 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
                         }
                         if (miss)
                             continue;
+                        if (version != null)
+                            version[0] = bytes.readVolatileLong(offset - metaDataBytes - SharedHashMapBuilder.ENTRY_VERSION_SIZE);
                         long valueLengthOffset = keyBytes.remaining() + tmpBytes.position();
                         tmpBytes.position(valueLengthOffset);
                         // skip the value length
@@ -606,8 +2586,10 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
             value = createValueIfNull(value);
 
             final int pos = nextFree();
-            final long offset = entriesOffset + pos * entrySize + metaDataBytes;
-            tmpBytes.storePositionAndSize(bytes, offset, entrySize - metaDataBytes);
+            // clear any previous lock word and meta data.
+            clearMetaData(entryOffset(pos));
+            final long offset = entryOffset(pos) + metaDataBytes;
+            tmpBytes.storePositionAndSize(bytes, offset, entrySize - entryHeaderBytes - metaDataBytes);
             final long keyLength = keyBytes.remaining();
             tmpBytes.writeStopBit(keyLength);
             tmpBytes.write(keyBytes);
@@ -644,9 +2626,9 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
             return value;
         }
 
-        void putEntry(Bytes keyBytes, V value, int hash2) {
+        long putEntry(Bytes keyBytes, V value, int hash2) {
             final int pos = nextFree();
-            final long offset = entriesOffset + pos * entrySize;
+            final long offset = entryOffset(pos);
             // clear any previous meta data.
             clearMetaData(offset);
             writeKey(keyBytes, offset + metaDataBytes);
@@ -654,11 +2636,12 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
             // add to index if successful.
             hashLookup.put(hash2, pos);
             incrementSize();
+            return offset;
         }
 
         void directPutEntry(Bytes keyBytes, Bytes valueBytes, int hash2, K key, V value) {
             final int pos = nextFree();
-            final long offset = entriesOffset + pos * entrySize;
+            final long offset = entryOffset(pos);
             // clear any previous meta data.
             clearMetaData(offset);
             writeKey(keyBytes, offset + metaDataBytes);
@@ -669,7 +2652,13 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
             notifyPut(offset, false, key, value);
         }
 
+        /**
+         * Clears the lock word, if any, and the meta data of the entry at offset, and gives it a new version.
+         */
         private void clearMetaData(long offset) {
+            if (entryLocking)
+                bytes.writeOrderedLong(offset - entryHeaderBytes, 0L);
+            entryChanged(offset);
             if (metaDataBytes > 0) {
                 tmpBytes.storePositionAndSize(bytes, offset, metaDataBytes);
                 tmpBytes.zeroOut();
@@ -677,31 +2666,73 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
         }
 
         private void writeKey(Bytes keyBytes, long offset) {
-            tmpBytes.storePositionAndSize(bytes, offset, entrySize - metaDataBytes);
+            tmpBytes.storePositionAndSize(bytes, offset, entrySize - entryHeaderBytes - metaDataBytes);
             long keyLength = keyBytes.remaining();
             tmpBytes.writeStopBit(keyLength);
             tmpBytes.write(keyBytes);
         }
 
+        /**
+         * Always takes the lowest free entry, so the entries stay packed at the start of the segment and only the
+         * pages they are on are touched.
+         */
         int nextFree() {
-            int ret = (int) freeList.setNextClearBit(nextSet);
+            beginChange();
+            int ret = (int) freeList.setNextClearBit(freeHint());
             if (ret == DirectBitSet.NOT_FOUND) {
                 ret = (int) freeList.setNextClearBit(0);
                 if (ret == DirectBitSet.NOT_FOUND)
                     throw new IllegalStateException("Segment is full, no free entries found");
             }
-            nextSet = ret + 1;
+            setFreeHint(ret + 1);
             return ret;
         }
 
+        /**
+         * The hint is in the segment header so every process using the map allocates from the same place.
+         *
+         * @return the lowest entry which might be free.
+         */
+        private int freeHint() {
+            final int hint = bytes.readInt(FREE_HINT_OFFSET);
+            return hint >= 0 && hint < entriesPerSegment ? hint : 0;
+        }
+
+        private void setFreeHint(int hint) {
+            bytes.writeInt(FREE_HINT_OFFSET, hint);
+        }
+
+        private void freeEntry(int pos) {
+            beginChange();
+            freeList.clear(pos);
+            if (pos < freeHint())
+                setFreeHint(pos);
+        }
+
         /**
          * Reads from {@link this.tmpBytes} an object at {@param offset}, will reuse {@param value} if possible, to reduce object creation.
          *
          * @param value  the object to reuse ( if possible ), if null a new object will be created an object and no reuse will occur.
          * @param offset the offset to read the data from
          */
-        @SuppressWarnings("unchecked")
         V readObjectUsing(V value, final long offset) {
+            return readObjectUsing(tmpBytes, value, offset);
+        }
+
+        /**
+         * Read a value which is about to be overwritten or removed from tmpBytes, copying it into previousValue if
+         * not null, as referring to the entry would see the change.  previousValue has been checked to be a
+         * BytesMarshallable.
+         */
+        V readPrevious(V previousValue, final long offset) {
+            if (previousValue == null)
+                return readObjectUsing(null, offset);
+            ((BytesMarshallable) previousValue).readMarshallable(tmpBytes);
+            return previousValue;
+        }
+
+        @SuppressWarnings("unchecked")
+        V readObjectUsing(MultiStoreBytes tmpBytes, V value, final long offset) {
             if (generatedValueType)
                 if (value == null)
                     value = DataValueClasses.newDirectReference(vClass);
@@ -721,15 +2752,37 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
                     && tmpBytes.startsWith(keyBytes);
         }
 
+        /**
+         * Compare the value tmpBytes is positioned at with the bytes of an expected value, a word at a time.
+         */
+        private boolean valueEquals(Bytes expected, long valueLength) {
+            if (valueLength != expected.remaining())
+                return false;
+            final long position = tmpBytes.position();
+            final long expectedPosition = expected.position();
+            long i = 0;
+            for (; i <= valueLength - 8; i += 8)
+                if (tmpBytes.readLong(position + i) != expected.readLong(expectedPosition + i))
+                    return false;
+            for (; i < valueLength; i++)
+                if (tmpBytes.readByte(position + i) != expected.readByte(expectedPosition + i))
+                    return false;
+            return true;
+        }
+
         /**
          * implementation for map.remove(Key,Value)
+         * <p></p>
+         * The expected value is compared in its marshalled form, so a value type must marshal equal values the same way.
          *
          * @param keyBytes      the key of the entry to remove
          * @param expectedValue the entry will only be removed if the {@param existingValue} equals null or the {@param existingValue} equals that of the entry.value
          * @param hash2         a hash code relating to the {@keyBytes} ( not the natural hash of {@keyBytes}  )
+         * @param removedValue  to copy the value removed into, in which case removeReturnsNull is ignored.
          * @return if the entry corresponding to the {@param keyBytes} exists and removeReturnsNull==false, returns the value of the entry that was removed, otherwise null is returned
          */
-        V remove(final DirectBytes keyBytes, final K key, final V expectedValue, int hash2) {
+        V remove(final DirectBytes keyBytes, final K key, final V expectedValue, int hash2, final V removedValue) {
+            final Bytes expectedBytes = expectedValue == null ? null : getValueAsBytes(expectedValue);
             lock();
             try {
                 hash2 = hashLookup.startSearch(hash2);
@@ -740,26 +2793,29 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
                         return null;
 
                     } else {
-                        final long offset = entriesOffset + pos * entrySize + metaDataBytes;
-                        tmpBytes.storePositionAndSize(bytes, offset, entrySize - metaDataBytes);
+                        final long offset = entryOffset(pos) + metaDataBytes;
+                        tmpBytes.storePositionAndSize(bytes, offset, entrySize - entryHeaderBytes - metaDataBytes);
                         if (!keyEquals(keyBytes, tmpBytes))
                             continue;
                         final long keyLength = keyBytes.remaining() + tmpBytes.position(); // includes the stop bit length.
                         tmpBytes.position(keyLength);
-                        tmpBytes.readStopBit(); // read the length of the value.
+                        final long valueLength = tmpBytes.readStopBit();
                         tmpBytes.alignPositionAddr(4);
-                        V valueRemoved = expectedValue == null && removeReturnsNull ? null : readObjectUsing(null, offset + keyLength);
-
-                        if (expectedValue != null && !expectedValue.equals(valueRemoved))
-                            return null;
+                        final V valueRemoved;
+                        if (expectedBytes != null) {
+                            if (!valueEquals(expectedBytes, valueLength))
+                                return null;
+                            valueRemoved = expectedValue;
+                        } else {
+                            valueRemoved = removeReturnsNull && removedValue == null ? null : readPrevious(removedValue, offset + keyLength);
+                        }
 
+                        beginChange();
                         hashLookup.remove(hash2, pos);
                         decrementSize();
                         notifyRemoved(offset - metaDataBytes, key, valueRemoved);
 
-                        freeList.clear(pos);
-                        if (pos < nextSet)
-                            nextSet = pos;
+                        freeEntry(pos);
                         return valueRemoved;
                     }
                 }
@@ -780,19 +2836,18 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
                         return;
 
                     } else {
-                        final long offset = entriesOffset + pos * entrySize + metaDataBytes;
-                        tmpBytes.storePositionAndSize(bytes, offset, entrySize - metaDataBytes);
+                        final long offset = entryOffset(pos) + metaDataBytes;
+                        tmpBytes.storePositionAndSize(bytes, offset, entrySize - entryHeaderBytes - metaDataBytes);
                         if (!keyEquals(keyBytes, tmpBytes))
                             continue;
                         final long keyLength = align(keyBytes.remaining() + tmpBytes.position()); // includes the stop bit length.
                         tmpBytes.position(keyLength);
 
+                        beginChange();
                         hashLookup.remove(hash2, pos);
                         decrementSize();
 
-                        freeList.clear(pos);
-                        if (pos < nextSet)
-                            nextSet = pos;
+                        freeEntry(pos);
 
                         return;
                     }
@@ -810,6 +2865,8 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
          * @return true if and entry for this key exists
          */
         boolean containsKey(final DirectBytes keyBytes, final int hash2) {
+            if (lockFreeReads)
+                return readContainsKey(keyBytes, hash2);
             lock();
             try {
 
@@ -823,8 +2880,8 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
 
                     } else {
 
-                        final long offset = entriesOffset + pos * entrySize + metaDataBytes;
-                        tmpBytes.storePositionAndSize(bytes, offset, entrySize - metaDataBytes);
+                        final long offset = entryOffset(pos) + metaDataBytes;
+                        tmpBytes.storePositionAndSize(bytes, offset, entrySize - entryHeaderBytes - metaDataBytes);
 
                         if (!keyEquals(keyBytes, tmpBytes))
                             continue;
@@ -841,14 +2898,19 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
 
         /**
          * implementation for map.replace(Key,Value) and map.replace(Key,Old,New)
+         * <p></p>
+         * The expected value is compared in its marshalled form, so a value type must marshal equal values the same way.
          *
          * @param keyBytes      the key of the entry to be replaced
          * @param expectedValue the expected value to replaced
          * @param newValue      the new value that will only be set if the existing value in the map equals the {@param expectedValue} or  {@param expectedValue} is null
          * @param hash2         a hash code relating to the {keyBytes} ( not the natural hash of {keyBytes}  )
+         * @param previousValue to copy the value replaced into, or null.
          * @return null if the value was not replaced, else the value that is replaced is returned
          */
-        V replace(final DirectBytes keyBytes, final K key, final V expectedValue, final V newValue, final int hash2) {
+        V replace(final DirectBytes keyBytes, final K key, final V expectedValue, final V newValue, final int hash2,
+                  final V previousValue) {
+            final Bytes expectedBytes = expectedValue == null ? null : getValueAsBytes(expectedValue);
             lock();
             try {
 
@@ -862,8 +2924,8 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
 
                     } else {
 
-                        final long offset = entriesOffset + pos * entrySize + metaDataBytes;
-                        tmpBytes.storePositionAndSize(bytes, offset, entrySize - metaDataBytes);
+                        final long offset = entryOffset(pos) + metaDataBytes;
+                        tmpBytes.storePositionAndSize(bytes, offset, entrySize - entryHeaderBytes - metaDataBytes);
 
                         if (!keyEquals(keyBytes, tmpBytes))
                             continue;
@@ -871,19 +2933,24 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
                         final long keyLength = keyBytes.remaining();
                         tmpBytes.skip(keyLength);
                         long valuePosition = tmpBytes.position();
-                        tmpBytes.readStopBit();
+                        final long valueLength = tmpBytes.readStopBit();
                         final long alignPosition = align(tmpBytes.position());
                         tmpBytes.position(alignPosition);
 
-                        final V valueRead = readObjectUsing(null, offset + keyLength);
-
-                        if (valueRead == null)
-                            return null;
-
-                        if (expectedValue == null || expectedValue.equals(valueRead)) {
-                            tmpBytes.position(valuePosition);
-                            appendInstance(keyBytes, newValue);
+                        final V valueRead;
+                        if (expectedBytes != null) {
+                            if (!valueEquals(expectedBytes, valueLength))
+                                return null;
+                            valueRead = expectedValue;
+                        } else {
+                            valueRead = readPrevious(previousValue, offset + keyLength);
+                            if (valueRead == null)
+                                return null;
                         }
+
+                        entryChanged(offset - metaDataBytes);
+                        tmpBytes.position(valuePosition);
+                        appendInstance(keyBytes, newValue);
                         notifyPut(offset, false, key, valueRead);
                         return valueRead;
                     }
@@ -901,26 +2968,27 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
          * @param value
          * @param hash2            a hash code relating to the {@keyBytes} ( not the natural hash of {@keyBytes}  )
          * @param replaceIfPresent
+         * @param previousValue    to copy the value replaced into, in which case putReturnsNull is ignored.
          * @return
          */
-        V put(final DirectBytes keyBytes, final K key, final V value, int hash2, boolean replaceIfPresent) {
+        V put(final DirectBytes keyBytes, final K key, final V value, int hash2, boolean replaceIfPresent,
+              final V previousValue) {
             lock();
             try {
                 hash2 = hashLookup.startSearch(hash2);
                 while (true) {
                     final int pos = hashLookup.nextPos();
                     if (pos < 0) {
-                        putEntry(keyBytes, value, hash2);
-                        final long offset = entriesOffset + pos * entrySize;
-                        notifyPut(offset, false, key, value);
+                        final long offset = putEntry(keyBytes, value, hash2);
+                        notifyPut(offset, true, key, value);
                         return null;
 
                     } else {
-                        final long offset = entriesOffset + pos * entrySize + metaDataBytes;
-                        tmpBytes.storePositionAndSize(bytes, offset, entrySize - metaDataBytes);
+                        final long offset = entryOffset(pos) + metaDataBytes;
+                        tmpBytes.storePositionAndSize(bytes, offset, entrySize - entryHeaderBytes - metaDataBytes);
                         if (!keyEquals(keyBytes, tmpBytes))
                             continue;
-                        V v = addForPut(keyBytes, value, replaceIfPresent, offset);
+                        V v = addForPut(keyBytes, value, replaceIfPresent, offset, previousValue);
                         notifyPut(offset - metaDataBytes, false, key, v);
                         return v;
                     }
@@ -932,14 +3000,14 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
 
         private void notifyPut(long offset, boolean added, K key, V value) {
             if (eventListener != SharedMapEventListeners.NOP) {
-                tmpBytes.storePositionAndSize(bytes, offset, entrySize);
+                tmpBytes.storePositionAndSize(bytes, offset, entrySize - entryHeaderBytes);
                 eventListener.onPut(VanillaSharedHashMap.this, tmpBytes, metaDataBytes, added, key, value);
             }
         }
 
         private void notifyGet(long offset, K key, V value) {
             if (eventListener != SharedMapEventListeners.NOP) {
-                tmpBytes.storePositionAndSize(bytes, offset, entrySize);
+                tmpBytes.storePositionAndSize(bytes, offset, entrySize - entryHeaderBytes);
                 eventListener.onGetFound(VanillaSharedHashMap.this, tmpBytes, metaDataBytes, key, value);
             }
         }
@@ -949,8 +3017,9 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
                 ((Byteable) usingValue).bytes(null, 0);
             if (eventListener != SharedMapEventListeners.NOP) {
                 V value2 = eventListener.onGetMissing(VanillaSharedHashMap.this, keyBytes, key, usingValue);
-                if (value2 != null)
-                    put(keyBytes, key, value2, hash2, false);
+                // a read only mapping can't be locked or written, so the value is only returned.
+                if (value2 != null && !readOnly)
+                    put(keyBytes, key, value2, hash2, false, null);
                 return value2;
             }
             return null;
@@ -958,24 +3027,25 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
 
         private void notifyRemoved(long offset, K key, V value) {
             if (eventListener != SharedMapEventListeners.NOP) {
-                tmpBytes.storePositionAndSize(bytes, offset, entrySize);
+                tmpBytes.storePositionAndSize(bytes, offset, entrySize - entryHeaderBytes);
                 eventListener.onRemove(VanillaSharedHashMap.this, tmpBytes, metaDataBytes, key, value);
             }
 
         }
 
-        private V addForPut(DirectBytes keyBytes, V value, boolean replaceIfPresent, long offset) {
+        private V addForPut(DirectBytes keyBytes, V value, boolean replaceIfPresent, long offset, V previousValue) {
             final long keyLength = keyBytes.remaining();
             tmpBytes.skip(keyLength);
             if (replaceIfPresent) {
-                if (putReturnsNull) {
+                entryChanged(offset - metaDataBytes);
+                if (putReturnsNull && previousValue == null) {
                     appendInstance(keyBytes, value);
                     return null;
                 }
                 long valuePosition = tmpBytes.position();
                 tmpBytes.readStopBit();
                 tmpBytes.alignPositionAddr(4);
-                final V v = readObjectUsing(null, offset + tmpBytes.position());
+                final V v = readPrevious(previousValue, offset + tmpBytes.position());
                 tmpBytes.position(valuePosition);
                 appendInstance(keyBytes, value);
 
@@ -1002,12 +3072,13 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
                         return;
 
                     } else {
-                        final long offset = entriesOffset + pos * entrySize + metaDataBytes;
-                        tmpBytes.storePositionAndSize(bytes, offset, entrySize - metaDataBytes);
+                        final long offset = entryOffset(pos) + metaDataBytes;
+                        tmpBytes.storePositionAndSize(bytes, offset, entrySize - entryHeaderBytes - metaDataBytes);
                         if (!keyEquals(keyBytes, tmpBytes))
                             continue;
                         final long keyLength = keyBytes.remaining();
                         tmpBytes.skip(keyLength);
+                        entryChanged(offset - metaDataBytes);
                         appendValue(valueBytes);
                         return;
                     }
@@ -1017,6 +3088,95 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
             }
         }
 
+        /**
+         * Give the entry at offset, before its meta data, the next version for this segment, and mark the segment as
+         * changed.  Must hold the lock.
+         */
+        private void entryChanged(long offset) {
+            beginChange();
+            if (versionedEntries)
+                bytes.writeOrderedLong(offset - SharedHashMapBuilder.ENTRY_VERSION_SIZE,
+                        bytes.addAtomicLong(VERSION_SEQ_OFFSET, 1));
+        }
+
+        /**
+         * @return the version of the entry for a key, or 0 if there is none.
+         */
+        long version(final DirectBytes keyBytes, final int hash2) {
+            if (lockFreeReads)
+                return readVersion(keyBytes, hash2);
+            lock();
+            try {
+                hashLookup.startSearch(hash2);
+                for (int pos = hashLookup.nextPos(); pos >= 0; pos = hashLookup.nextPos()) {
+                    final long offset = entryOffset(pos);
+                    tmpBytes.storePositionAndSize(bytes, offset + metaDataBytes, entrySize - entryHeaderBytes - metaDataBytes);
+                    if (keyEquals(keyBytes, tmpBytes))
+                        return bytes.readVolatileLong(offset - SharedHashMapBuilder.ENTRY_VERSION_SIZE);
+                }
+                return 0;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * A getVersion() in single writer mode.
+         */
+        private long readVersion(DirectBytes keyBytes, int hash2) {
+            final ReadContext context = acquireReadContext();
+            while (true) {
+                final long generation = stableGeneration();
+                final long version;
+                try {
+                    final long offset = find(context, keyBytes, hash2);
+                    version = offset < 0 ? 0 :
+                            bytes.readVolatileLong(offset - metaDataBytes - SharedHashMapBuilder.ENTRY_VERSION_SIZE);
+                } catch (RuntimeException e) {
+                    if (validate(generation))
+                        throw e;
+                    continue;
+                }
+                if (validate(generation))
+                    return version;
+            }
+        }
+
+        /**
+         * implementation for map.putIfVersion(Key,Value,Version)
+         *
+         * @return true if the entry had the expectedVersion, or was absent and expectedVersion was 0.
+         */
+        boolean putIfVersion(final DirectBytes keyBytes, final K key, final V value, int hash2, long expectedVersion) {
+            lock();
+            try {
+                hash2 = hashLookup.startSearch(hash2);
+                while (true) {
+                    final int pos = hashLookup.nextPos();
+                    if (pos < 0) {
+                        if (expectedVersion != 0)
+                            return false;
+                        final long offset = putEntry(keyBytes, value, hash2);
+                        notifyPut(offset, true, key, value);
+                        return true;
+                    }
+                    final long offset = entryOffset(pos);
+                    tmpBytes.storePositionAndSize(bytes, offset + metaDataBytes, entrySize - entryHeaderBytes - metaDataBytes);
+                    if (!keyEquals(keyBytes, tmpBytes))
+                        continue;
+                    if (bytes.readVolatileLong(offset - SharedHashMapBuilder.ENTRY_VERSION_SIZE) != expectedVersion)
+                        return false;
+                    entryChanged(offset);
+                    tmpBytes.skip(keyBytes.remaining());
+                    appendInstance(keyBytes, value);
+                    notifyPut(offset, false, key, value);
+                    return true;
+                }
+            } finally {
+                unlock();
+            }
+        }
+
         void appendInstance(final Bytes bytes, final V value) {
             bytes.clear();
             if (generatedValueType)
@@ -1035,16 +3195,136 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
             tmpBytes.write(value);
         }
 
-        public void clear() {
+        /**
+         * @param releaseMemory true to also release the pages of the entries.
+         * @return false if the memory was to be released but couldn't be.
+         */
+        boolean clear(boolean releaseMemory) {
             lock();
             try {
+                beginChange();
                 hashLookup.clear();
                 freeList.clear();
                 resetSize();
+                setFreeHint(0);
+                return !releaseMemory || releaseEntries();
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Release the pages and disk blocks of the entries, which will read as zeros.  Must hold the lock.
+         *
+         * @return false if neither madvise(MADV_REMOVE) nor fallocate(FALLOC_FL_PUNCH_HOLE) is supported.
+         */
+        private boolean releaseEntries() {
+            return releaseEntriesFrom(0);
+        }
+
+        private boolean releaseEntriesFrom(long pos) {
+            final long start = bytes.startAddr() + entriesOffset + pos * entrySize;
+            final long length = (entriesPerSegment - pos) * entrySize;
+            if (NativeMemory.madviseWithin(start, length, NativeMemory.MADV_REMOVE, PAGE_SIZE))
+                return true;
+            // MADV_DONTNEED would leave a shared mapping's pages in the page cache and its blocks on disk.
+            final long first = (start + PAGE_SIZE - 1) & -PAGE_SIZE;
+            final long end = (start + length) & -PAGE_SIZE;
+            if (end <= first)
+                return true;
+            final long fileOffset = storeOffset + segmentOffset(index / shards) + first - bytes.startAddr();
+            if (punchHole(files[index % shards], fileOffset, end - first))
+                return true;
+            if (!releaseFailureLogged) {
+                releaseFailureLogged = true;
+                LOGGER.warning("Unable to release the memory of entries in " + files[index % shards]
+                        + ", errno: " + NativeMemory.lastError());
+            }
+            return false;
+        }
+
+        /**
+         * Move up to maxMoves of the last entries into the lowest free entries, and once there are no gaps left
+         * release the pages after the last entry.
+         *
+         * @return the number of entries moved.
+         */
+        int compact(int maxMoves) {
+            lock();
+            try {
+                int moved = 0;
+                long last = freeList.previousSetBit(entriesPerSegment - 1), free = -1;
+                for (; moved < maxMoves && last >= 0; last = freeList.previousSetBit(last - 1)) {
+                    free = freeList.nextClearBit(free + 1);
+                    if (free == DirectBitSet.NOT_FOUND || free > last)
+                        break;
+                    final long from = entriesOffset + last * entrySize;
+                    // an entry which is locked, or can't be indexed again, stays where it is.
+                    if (entryLocking && bytes.readVolatileLong(from) != 0)
+                        return moved;
+                    final long hash2 = recoverHash((int) last);
+                    if (hash2 < 0)
+                        return moved;
+                    beginChange();
+                    copyEntry(from, entriesOffset + free * entrySize);
+                    hashLookup.remove((int) hash2, (int) last);
+                    hashLookup.put((int) hash2, (int) free);
+                    freeList.set(free);
+                    freeList.clear(last);
+                    moved++;
+                }
+                setFreeHint(0);
+                if (moved < maxMoves)
+                    releaseEntriesFrom(last + 1);
+                return moved;
             } finally {
                 unlock();
             }
+        }
+
+        /**
+         * Mark the segment as changed since it was last synced, if it is synced by segment.  Must hold the lock,
+         * called by beginChange().
+         */
+        private void markDirty() {
+            // read first so a segment already marked doesn't write to its header on every change.
+            if (trackDirty && bytes.readInt(DIRTY_OFFSET) == 0)
+                bytes.writeOrderedInt(DIRTY_OFFSET, 1);
+        }
+
+        /**
+         * Write back the segment, clearing its mark first.  The mark is cleared under the lock, so a change is
+         * either written back by this sync or marks the segment again.  A read only map can't lock or mark the
+         * segment, nor can a process which isn't the single writer as the writer doesn't take the shared lock, so
+         * they only write back the changes of other processes.
+         *
+         * @return false if the segment couldn't be written back alone, as msync isn't available.
+         */
+        boolean sync() {
+            if (!readOnly && (!singleWriter || isWriter())) {
+                lock();
+                try {
+                    bytes.writeOrderedInt(DIRTY_OFFSET, 0);
+                } finally {
+                    unlock();
+                }
+            }
+            return NativeMemory.msync(bytes.startAddr(), bytes.capacity(), NativeMemory.MS_SYNC, PAGE_SIZE);
+        }
+
+        /**
+         * @return the last entry in use, or -1 if there are none.
+         */
+        long lastEntry() {
+            return freeList.previousSetBit(entriesPerSegment - 1);
+        }
 
+        private void copyEntry(long from, long to) {
+            int i = 0;
+            for (; i <= entrySize - 8; i += 8)
+                bytes.writeLong(to + i, bytes.readLong(from + i));
+            for (; i < entrySize; i++)
+                bytes.writeByte(to + i, bytes.readByte(from + i));
         }
 
         void visit(IntIntMultiMap.EntryConsumer entryConsumer) {
@@ -1052,8 +3332,8 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
         }
 
         Entry<K, V> getEntry(int pos) {
-            final long offset = entriesOffset + pos * entrySize + metaDataBytes;
-            int length = entrySize - metaDataBytes;
+            final long offset = entryOffset(pos) + metaDataBytes;
+            int length = entrySize - entryHeaderBytes - metaDataBytes;
             tmpBytes.storePositionAndSize(bytes, offset, length);
             tmpBytes.readStopBit();
             K key = tmpBytes.readInstance(kClass, null); //todo: readUsing?
@@ -1071,7 +3351,7 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
 
     final class EntryIterator implements Iterator<Entry<K, V>>, IntIntMultiMap.EntryConsumer {
 
-        int segmentIndex = segments.length;
+        int segmentIndex = segments.length();
 
         Entry<K, V> nextEntry, lastReturned;
 
@@ -1105,7 +3385,7 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
                 if (segmentPositions.isEmpty()) {
                     switchToNextSegment();
                 } else {
-                    Segment segment = segments[segmentIndex];
+                    Segment segment = segment(segmentIndex);
                     while (!segmentPositions.isEmpty()) {
                         Entry<K, V> entry = segment.getEntry(segmentPositions.removeFirst());
                         if (entry != null) {
@@ -1121,7 +3401,7 @@ public class VanillaSharedHashMap<K, V> extends AbstractMap<K, V> implements Sha
             segmentPositions.clear();
             segmentIndex--;
             if (segmentIndex >= 0) {
-                segments[segmentIndex].visit(this);
+                segment(segmentIndex).visit(this);
             }
         }
 
@@ -136,31 +136,44 @@ class VanillaShortShortMultiMap implements IntIntMultiMap {
     /////////////////////
     // Stateful methods
 
-    private int searchHash = -1;
-    private int searchPos = -1;
+    private final Cursor cursor = new Cursor();
 
     @Override
     public int startSearch(int key) {
+        return startSearch(cursor, key);
+    }
+
+    @Override
+    public int nextPos() {
+        return nextPos(cursor);
+    }
+
+    @Override
+    public int startSearch(Cursor cursor, int key) {
         if (key == UNSET_KEY)
             key = HASH_INSTEAD_OF_UNSET_KEY;
 
-        searchPos = (key & capacityMask) << ENTRY_SIZE_SHIFT;
-        return searchHash = key;
+        cursor.searchPos = (key & capacityMask) << ENTRY_SIZE_SHIFT;
+        return cursor.searchHash = key;
     }
 
     @Override
-    public int nextPos() {
+    public int nextPos(Cursor cursor) {
+        int searchPos = (int) cursor.searchPos;
         for (int i = 0; i < capacity; i++) {
             int entry = bytes.readInt(searchPos);
             int hash2 = entry >>> 16;
             if (hash2 == UNSET_KEY) {
+                cursor.searchPos = searchPos;
                 return UNSET_VALUE;
             }
             searchPos = (searchPos + ENTRY_SIZE) & capacityMask2;
-            if (hash2 == searchHash) {
+            if (hash2 == cursor.searchHash) {
+                cursor.searchPos = searchPos;
                 return entry & 0xFFFF;
             }
         }
+        cursor.searchPos = searchPos;
         return UNSET_VALUE;
     }
 
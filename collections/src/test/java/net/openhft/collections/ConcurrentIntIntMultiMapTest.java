@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentIntIntMultiMapTest {
+    static final int THREADS = 4;
+    static final int VALUES = 10000;
+    static final int KEYS = 1000;
+
+    @Test
+    public void testConcurrentPutRemoveSearch() throws Exception {
+        final ConcurrentIntIntMultiMap map = new ConcurrentIntIntMultiMap(THREADS * VALUES * 2);
+        ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int base = t * VALUES;
+            futures.add(es.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    IntIntMultiMap.Cursor cursor = new IntIntMultiMap.Cursor();
+                    for (int i = 0; i < VALUES; i++)
+                        map.put(key(i), base + i);
+                    for (int i = 0; i < VALUES; i += 2)
+                        assertTrue(map.remove(key(i), base + i));
+                    for (int i = 0; i < VALUES; i++)
+                        assertEquals(i % 2 == 1, contains(map, cursor, key(i), base + i));
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        es.shutdown();
+
+        final int[] count = {0};
+        map.forEach(new IntIntMultiMap.EntryConsumer() {
+            @Override
+            public void accept(int key, int value) {
+                assertEquals(1, value % 2);
+                count[0]++;
+            }
+        });
+        assertEquals(THREADS * VALUES / 2, count[0]);
+    }
+
+    @Test
+    public void testRehashDropsTombstones() {
+        ConcurrentIntIntMultiMap map = new ConcurrentIntIntMultiMap(64);
+        IntIntMultiMap.Cursor cursor = new IntIntMultiMap.Cursor();
+        // one chain, so later keys can't reuse the tombstones of earlier ones after them.
+        for (int i = 0; i < 40; i++)
+            map.put(1, i);
+        for (int i = 0; i < 30; i++)
+            assertTrue(map.remove(1, i));
+        assertEquals(30, map.tombstones());
+        assertTrue(map.needsRehash());
+
+        // a put reuses the first tombstone once it has checked the pair isn't already there.
+        map.put(1, 35);
+        assertEquals(30, map.tombstones());
+        map.put(1, 40);
+        assertEquals(29, map.tombstones());
+
+        map.rehash();
+        assertEquals(0, map.tombstones());
+        assertFalse(map.needsRehash());
+        for (int i = 0; i <= 40; i++)
+            assertEquals(i >= 30, contains(map, cursor, 1, i));
+        // the chain ends after the entries which are left.
+        map.startSearch(cursor, 1);
+        for (int i = 0; i < 11; i++)
+            assertTrue(map.nextPos(cursor) >= 30);
+        assertTrue(map.nextPos(cursor) < 0);
+    }
+
+    // spread the keys so each has its own short chain.
+    static int key(int i) {
+        return (i % KEYS + 1) * 101;
+    }
+
+    static boolean contains(IntIntMultiMap map, IntIntMultiMap.Cursor cursor, int key, int value) {
+        map.startSearch(cursor, key);
+        for (int pos; (pos = map.nextPos(cursor)) >= 0; )
+            if (pos == value)
+                return true;
+        return false;
+    }
+}
@@ -38,7 +38,8 @@ public class IntIntMultiMapTest {
     public static Collection<Object[]> data() {
         return Arrays.asList(new Object[][] {
                 { VanillaIntIntMultiMap.class },
-                { VanillaShortShortMultiMap.class }
+                { VanillaShortShortMultiMap.class },
+                { ConcurrentIntIntMultiMap.class }
         });
     }
     private Class<? extends IntIntMultiMap> c;
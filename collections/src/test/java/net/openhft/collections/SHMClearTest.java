@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class SHMClearTest {
+
+    @Test
+    public void testClearReleasingMemory() throws IOException {
+        SharedHashMap<Integer, String> map = new SharedHashMapBuilder()
+                .entries(100000)
+                .minSegments(8)
+                .create(SharedHashMapTest.getPersistenceFile(), Integer.class, String.class);
+        for (int i = 0; i < 50000; i++)
+            map.put(i, "value-" + i);
+        assertEquals(50000, map.size());
+
+        // where memory can't be released, this is logged and the map is still cleared.
+        map.clear(true);
+        assertEquals(0, map.size());
+        assertNull(map.get(1));
+
+        // the map is usable after being cleared.
+        for (int i = 0; i < 1000; i++)
+            map.put(i, "again-" + i);
+        assertEquals(1000, map.size());
+        assertEquals("again-999", map.get(999));
+        map.clear(false);
+        assertTrue(map.isEmpty());
+        map.close();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.values.LongValue;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class SHMCompactTest {
+
+    @Test
+    public void testCompactKeepsEntries() throws IOException {
+        SharedHashMap<Integer, String> map = new SharedHashMapBuilder()
+                .entries(10000)
+                .minSegments(4)
+                .create(SharedHashMapTest.getPersistenceFile(), Integer.class, String.class);
+        for (int i = 0; i < 10000; i++)
+            map.put(i, "value-" + i);
+        // leave every tenth entry, spread over the whole of each segment.
+        for (int i = 0; i < 10000; i++)
+            if (i % 10 != 0)
+                map.remove(i);
+        assertEquals(1000, map.size());
+
+        assertTrue(map.compact() > 0);
+        // nothing left to move.
+        assertEquals(0, map.compact());
+
+        assertEquals(1000, map.size());
+        for (int i = 0; i < 10000; i++)
+            assertEquals(i % 10 == 0 ? "value-" + i : null, map.get(i));
+
+        // new entries and updates still work once compacted.
+        for (int i = 0; i < 10000; i += 10)
+            map.put(i, "again-" + i);
+        map.put(1, "one");
+        assertEquals(1001, map.size());
+        assertEquals("again-9990", map.get(9990));
+        assertEquals("one", map.remove(1));
+        map.close();
+    }
+
+    @Test
+    public void testBackgroundCompaction() throws Exception {
+        VanillaSharedHashMap<Integer, String> map = (VanillaSharedHashMap<Integer, String>) new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(4)
+                .compactIntervalMS(10)
+                .create(SharedHashMapTest.getPersistenceFile(), Integer.class, String.class);
+        assertEquals(10, map.builder().compactIntervalMS());
+        for (int i = 0; i < 1000; i++)
+            map.put(i, "value-" + i);
+        for (int i = 0; i < 1000; i += 2)
+            map.remove(i);
+        assertEquals(500, map.size());
+
+        // wait for every segment to have its entries moved to the start.
+        for (int i = 0; i < 500 && !isCompacted(map); i++)
+            Thread.sleep(10);
+        assertTrue(isCompacted(map));
+        assertEquals(0, map.compact());
+
+        assertEquals(500, map.size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals(i % 2 == 0 ? null : "value-" + i, map.get(i));
+        map.close();
+    }
+
+    private static boolean isCompacted(VanillaSharedHashMap<?, ?> map) {
+        for (int i = 0; i < map.builder().actualSegments(); i++) {
+            VanillaSharedHashMap.Segment segment = map.segment(i);
+            if (segment.lastEntry() + 1 != segment.getSize())
+                return false;
+        }
+        return true;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoBackgroundCompactionOfByteableValues() throws IOException {
+        new SharedHashMapBuilder()
+                .entries(1000)
+                .compactIntervalMS(10)
+                .generatedValueType(true)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, LongValue.class);
+    }
+
+    @Test
+    public void testCompactOfByteableValuesMustBeConfirmed() throws IOException {
+        SharedHashMap<String, LongValue> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(1)
+                .generatedValueType(true)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, LongValue.class);
+        for (int i = 0; i < 10; i++)
+            map.acquireUsing("key-" + i, null).setValue(i);
+        for (int i = 0; i < 10; i += 2)
+            map.remove("key-" + i);
+        try {
+            map.compact();
+            fail();
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+        // no value from acquireUsing() is used after this.
+        assertTrue(map.compact(true) > 0);
+        for (int i = 1; i < 10; i += 2)
+            assertEquals(i, map.get("key-" + i).getValue());
+        map.close();
+    }
+}
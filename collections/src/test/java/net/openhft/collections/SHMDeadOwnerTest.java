@@ -0,0 +1,136 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.*;
+
+public class SHMDeadOwnerTest {
+
+    @Test
+    public void testLockOfDeadProcessIsReleased() throws IOException {
+        // only Linux has /proc to check for, and the pid namespace is read with JNA.
+        if (!new File("/proc/self").exists() || Processes.pidNamespace() == 0)
+            return;
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(1)
+                .lockTimeOutMS(20 * 1000)
+                .lockStrategy(SharedMapLockStrategies.ADAPTIVE)
+                .errorListener(SharedMapErrorListeners.ERROR)
+                .create(file, String.class, String.class);
+        map.put("a", "aye");
+        map.put("b", "bee");
+
+        // as if a process died holding the lock part way through adding an entry.
+        long segmentStart = SharedHashMapBuilder.HEADER_SIZE;
+        writeLong(file, segmentStart + VanillaSharedHashMap.Segment.LOCK_OFFSET, ((long) deadProcessId() << 32) | 1);
+        writeInt(file, segmentStart + VanillaSharedHashMap.Segment.SIZE_OFFSET, 3);
+
+        long start = System.nanoTime();
+        map.put("c", "see");
+        long time = System.nanoTime() - start;
+        assertTrue("took " + time / 1000 + " us", time < 1000 * 1000 * 1000L);
+
+        assertEquals(3, map.size());
+        assertEquals("aye", map.get("a"));
+        assertEquals("bee", map.get("b"));
+        assertEquals("see", map.get("c"));
+        assertEquals(1, map.contendedLocks());
+        map.close();
+    }
+
+    @Test
+    public void testLockInAnotherPidNamespaceIsNotReleased() throws IOException {
+        if (!new File("/proc/self").exists() || Processes.pidNamespace() == 0)
+            return;
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(1)
+                .lockTimeOutMS(200)
+                .lockStrategy(SharedMapLockStrategies.ADAPTIVE)
+                .errorListener(SharedMapErrorListeners.ERROR)
+                .create(file, String.class, String.class);
+        map.put("a", "aye");
+
+        // as if a process in another container, whose process id isn't in our /proc, opened the map and holds a lock.
+        writeLong(file, SharedHashMapBuilder.PID_NAMESPACE_OFFSET, VanillaSharedHashMap.MIXED_PID_NAMESPACES);
+        long segmentStart = SharedHashMapBuilder.HEADER_SIZE;
+        long lockHolder = ((long) deadProcessId() << 32) | 1;
+        writeLong(file, segmentStart + VanillaSharedHashMap.Segment.LOCK_OFFSET, lockHolder);
+
+        long start = System.nanoTime();
+        try {
+            map.put("b", "bee");
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        long time = System.nanoTime() - start;
+        assertTrue("took " + time / 1000 + " us", time >= 200 * 1000 * 1000L);
+        assertEquals(lockHolder, readLong(file, segmentStart + VanillaSharedHashMap.Segment.LOCK_OFFSET));
+        map.close();
+    }
+
+    private static int deadProcessId() {
+        for (int pid = 4 * 1000 * 1000; ; pid--)
+            if (!new File("/proc/" + pid).exists())
+                return pid;
+    }
+
+    private static void writeLong(File file, long offset, long value) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+        bb.putLong(0, value);
+        write(file, offset, bb);
+    }
+
+    private static long readLong(File file, long offset) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.getChannel().read(bb, offset);
+        } finally {
+            raf.close();
+        }
+        return bb.getLong(0);
+    }
+
+    private static void writeInt(File file, long offset, int value) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder());
+        bb.putInt(0, value);
+        write(file, offset, bb);
+    }
+
+    private static void write(File file, long offset, ByteBuffer bb) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel fc = raf.getChannel();
+            fc.write(bb, offset);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.values.LongValue;
+import net.openhft.lang.values.LongValue£native;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class SHMEntryLockingTest {
+
+    private static SharedHashMap<String, LongValue> createMap() throws IOException {
+        return new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(16)
+                .entrySize(28)
+                .entryLocking(true)
+                .generatedValueType(true)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, LongValue.class);
+    }
+
+    @Test
+    public void testEntrySizeIsAligned() {
+        assertEquals(28, new SharedHashMapBuilder().entrySize(28).entrySize());
+        assertEquals(32, new SharedHashMapBuilder().entrySize(28).entryLocking(true).entrySize());
+    }
+
+    @Test
+    public void testIncrementUnderEntryLock() throws Exception {
+        final SharedHashMap<String, LongValue> map = createMap();
+        final int iterations = 100000;
+        final int noOfThreads = 2;
+        Thread[] threads = new Thread[noOfThreads];
+        for (int t = 0; t < noOfThreads; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    LongValue value = map.acquireUsing("counter", new LongValue£native());
+                    for (int i = 0; i < iterations; i++) {
+                        map.lockEntry(value);
+                        try {
+                            // not atomic, only the entry lock makes this safe.
+                            value.setValue(value.getValue() + 1);
+                        } finally {
+                            map.unlockEntry(value);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(noOfThreads * iterations, map.getUsing("counter", new LongValue£native()).getValue());
+        map.close();
+    }
+
+    @Test
+    public void testTryLockEntryWhileHeld() throws Exception {
+        final SharedHashMap<String, LongValue> map = createMap();
+        final LongValue value = map.acquireUsing("key", new LongValue£native());
+        map.lockEntry(value);
+
+        final AtomicBoolean locked = new AtomicBoolean(true);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                LongValue value2 = map.getUsing("key", new LongValue£native());
+                locked.set(map.tryLockEntry(value2));
+            }
+        });
+        thread.start();
+        thread.join();
+        assertFalse(locked.get());
+
+        // other entries are not affected.
+        LongValue other = map.acquireUsing("other", new LongValue£native());
+        assertTrue(map.tryLockEntry(other));
+        map.unlockEntry(other);
+
+        map.unlockEntry(value);
+        map.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testEntryLockingNotEnabled() throws IOException {
+        SharedHashMap<String, LongValue> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .generatedValueType(true)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, LongValue.class);
+        try {
+            map.lockEntry(map.acquireUsing("key", new LongValue£native()));
+        } finally {
+            map.close();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SHMFlatCombiningTest {
+
+    @Test
+    public void testFlatCombiningIsNotStoredInTheFile() throws IOException {
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .flatCombining(true)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        assertTrue(map.builder().flatCombining());
+        assertNull(map.put("hello", "world"));
+        assertEquals("world", map.put("hello", "world2"));
+        assertEquals("world2", map.putIfAbsent("hello", "world3"));
+        assertTrue(map.replace("hello", "world2", "world4"));
+        assertFalse(map.remove("hello", "world2"));
+        assertEquals("world4", map.remove("hello"));
+        assertTrue(map.isEmpty());
+        map.close();
+    }
+
+    @Test
+    public void testManyThreadsWritingOneSegment() throws Exception {
+        final SharedHashMap<Integer, Integer> map = new SharedHashMapBuilder()
+                .entries(10000)
+                .minSegments(1)
+                .flatCombining(true)
+                .create(SharedHashMapTest.getPersistenceFile(), Integer.class, Integer.class);
+        final int noOfThreads = 8;
+        final int keysPerThread = 1000;
+        final AtomicReference<String> error = new AtomicReference<String>();
+        Thread[] threads = new Thread[noOfThreads];
+        for (int t = 0; t < noOfThreads; t++) {
+            final int base = t * keysPerThread;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = base; i < base + keysPerThread; i++) {
+                        if (map.put(i, i) != null)
+                            error.compareAndSet(null, "put " + i);
+                        if (!map.replace(i, i, -i))
+                            error.compareAndSet(null, "replace " + i);
+                        // remove every other key again.
+                        if ((i & 1) == 0 && !Integer.valueOf(-i).equals(map.remove(i)))
+                            error.compareAndSet(null, "remove " + i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertNull(error.get());
+        assertEquals(noOfThreads * keysPerThread / 2, map.size());
+        for (int i = 1; i < noOfThreads * keysPerThread; i += 2)
+            assertEquals(Integer.valueOf(-i), map.get(i));
+        map.close();
+    }
+
+    @Test(timeout = 60000)
+    public void testErrorInACombinedWriteIsThrownToItsThread() throws Exception {
+        final SharedHashMap<Integer, Integer> map = new SharedHashMapBuilder()
+                .entries(10000)
+                .minSegments(1)
+                .flatCombining(true)
+                .eventListener(new SharedMapEventListener<Integer, Integer>() {
+                    @Override
+                    public Integer onGetMissing(SharedHashMap<Integer, Integer> map, Bytes keyBytes, Integer key, Integer usingValue) {
+                        return null;
+                    }
+
+                    @Override
+                    public void onGetFound(SharedHashMap<Integer, Integer> map, Bytes entry, int metaDataBytes, Integer key, Integer value) {
+                    }
+
+                    @Override
+                    public void onPut(SharedHashMap<Integer, Integer> map, Bytes entry, int metaDataBytes, boolean added, Integer key, Integer value) {
+                        // an Error, not a RuntimeException, whichever thread performs the write.
+                        if (value < 0)
+                            throw new AssertionError("value " + value);
+                    }
+
+                    @Override
+                    public void onRemove(SharedHashMap<Integer, Integer> map, Bytes entry, int metaDataBytes, Integer key, Integer value) {
+                    }
+                })
+                .create(SharedHashMapTest.getPersistenceFile(), Integer.class, Integer.class);
+        final int noOfThreads = 8;
+        final int keysPerThread = 1000;
+        final AtomicReference<String> error = new AtomicReference<String>();
+        Thread[] threads = new Thread[noOfThreads];
+        for (int t = 0; t < noOfThreads; t++) {
+            final int base = t * keysPerThread;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = base; i < base + keysPerThread; i++) {
+                        try {
+                            map.put(i, (i & 1) == 0 ? i : -i);
+                            if ((i & 1) != 0)
+                                error.compareAndSet(null, "no error for " + i);
+                        } catch (AssertionError e) {
+                            if ((i & 1) == 0 || !e.getMessage().equals("value " + -i))
+                                error.compareAndSet(null, "put " + i + " threw " + e);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        // a thread waiting for a write which failed would never finish.
+        for (Thread thread : threads)
+            thread.join();
+
+        assertNull(error.get());
+        assertEquals(Integer.valueOf(2), map.get(2));
+        map.close();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SHMLazySegmentsTest {
+
+    @Test
+    public void testSizeWithoutUsingTheSegments() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<Integer, String> writer = new SharedHashMapBuilder()
+                .entries(100000)
+                .minSegments(1024)
+                .create(file, Integer.class, String.class);
+        for (int i = 0; i < 10000; i++)
+            writer.put(i, "value-" + i);
+
+        // a second mapping, as a process reading a few keys would have.
+        SharedHashMap<Integer, String> reader = new SharedHashMapBuilder()
+                .create(file, Integer.class, String.class);
+        assertEquals(10000, reader.size());
+        assertEquals(0, reader.contendedLocks());
+        assertEquals("value-123", reader.get(123));
+        assertNull(reader.get(10000));
+
+        int count = 0;
+        for (String value : reader.values()) {
+            assertTrue(value.startsWith("value-"));
+            count++;
+        }
+        assertEquals(10000, count);
+
+        reader.close();
+        writer.close();
+    }
+
+    @Test
+    public void testSegmentsFirstUsedConcurrently() throws Exception {
+        final SharedHashMap<Integer, Integer> map = new SharedHashMapBuilder()
+                .entries(100000)
+                .minSegments(256)
+                .create(SharedHashMapTest.getPersistenceFile(), Integer.class, Integer.class);
+        final int noOfThreads = 4;
+        final AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[noOfThreads];
+        for (int t = 0; t < noOfThreads; t++) {
+            final int first = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // every thread uses every segment, so each one is created by whichever gets there first.
+                    for (int i = first; i < 20000; i += noOfThreads) {
+                        map.put(i, i);
+                        if (!Integer.valueOf(i).equals(map.get(i)))
+                            errors.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(0, errors.get());
+        assertEquals(20000, map.size());
+        map.close();
+    }
+}
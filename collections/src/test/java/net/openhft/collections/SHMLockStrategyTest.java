@@ -0,0 +1,296 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.DirectStore;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class SHMLockStrategyTest {
+    static final int THREADS = 8;
+    static final int ITERATIONS = 20000;
+
+    @Test
+    public void testAdaptiveLockWord() throws Exception {
+        final Bytes bytes = new DirectStore(null, 64, true).createSlice();
+        final SharedMapLockStrategy strategy = SharedMapLockStrategies.ADAPTIVE;
+        assertTrue(strategy.tryLock(bytes, 8));
+        assertEquals(SharedMapLockStrategies.lockId(), strategy.lockHolder(bytes, 8));
+
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        Future<Boolean> tryLock = es.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return strategy.tryLock(bytes, 8) || strategy.tryLock(bytes, 8, 10 * 1000 * 1000);
+            }
+        });
+        assertFalse(tryLock.get());
+        Future<Boolean> unlock = es.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                try {
+                    strategy.unlock(bytes, 8);
+                    return true;
+                } catch (IllegalMonitorStateException expected) {
+                    return false;
+                }
+            }
+        });
+        assertFalse(unlock.get());
+        es.shutdown();
+
+        strategy.unlock(bytes, 8);
+        assertEquals(0L, strategy.lockHolder(bytes, 8));
+
+        assertTrue(strategy.tryLock(bytes, 8, 1000));
+        strategy.forceUnlock(bytes, 8);
+        assertEquals(0L, bytes.readLong(8));
+    }
+
+    @Test
+    public void testTicketLockKeepsItsPlace() throws Exception {
+        final Bytes bytes = new DirectStore(null, 64, true).createSlice();
+        final SharedMapLockStrategy strategy = SharedMapLockStrategies.TICKET;
+        assertTrue(strategy.tryLock(bytes, 0));
+
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        // times out but keeps its ticket.
+        assertFalse(es.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return strategy.tryLock(bytes, 0, 1000 * 1000);
+            }
+        }).get());
+
+        strategy.unlock(bytes, 0);
+        // the waiting ticket is served first.
+        assertFalse(strategy.tryLock(bytes, 0));
+        assertTrue(es.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                if (!strategy.tryLock(bytes, 0))
+                    return false;
+                strategy.unlock(bytes, 0);
+                return true;
+            }
+        }).get());
+        es.shutdown();
+
+        assertTrue(strategy.tryLock(bytes, 0));
+        strategy.forceUnlock(bytes, 0);
+        assertTrue(strategy.tryLock(bytes, 0));
+        strategy.unlock(bytes, 0);
+    }
+
+    @Test
+    public void testTicketsForTwoLocksFromOneThread() throws Exception {
+        final Bytes bytes = new DirectStore(null, 64, true).createSlice();
+        final SharedMapLockStrategy strategy = SharedMapLockStrategies.TICKET;
+        assertTrue(strategy.tryLock(bytes, 0));
+        assertTrue(strategy.tryLock(bytes, 8));
+
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        // waits on one lock then the other, keeping a ticket for each.
+        assertFalse(es.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return strategy.tryLock(bytes, 0, 1000 * 1000) || strategy.tryLock(bytes, 8, 1000 * 1000);
+            }
+        }).get());
+
+        strategy.unlock(bytes, 0);
+        strategy.unlock(bytes, 8);
+        assertTrue(es.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                if (!strategy.tryLock(bytes, 0) || !strategy.tryLock(bytes, 8))
+                    return false;
+                strategy.unlock(bytes, 8);
+                strategy.unlock(bytes, 0);
+                return true;
+            }
+        }).get());
+        es.shutdown();
+
+        assertTrue(strategy.tryLock(bytes, 0));
+        assertTrue(strategy.tryLock(bytes, 8));
+        strategy.unlock(bytes, 0);
+        strategy.unlock(bytes, 8);
+    }
+
+    @Test
+    public void testAbandonedTicketIsSkipped() throws Exception {
+        final Bytes bytes = new DirectStore(null, 64, true).createSlice();
+        final SharedMapLockStrategy strategy = SharedMapLockStrategies.TICKET;
+        assertTrue(strategy.tryLock(bytes, 0));
+
+        // a thread which times out and never comes back for its ticket.
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                strategy.tryLock(bytes, 0, 1000 * 1000);
+            }
+        });
+        thread.start();
+        thread.join();
+
+        strategy.unlock(bytes, 0);
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        long start = System.nanoTime();
+        assertTrue(es.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return strategy.tryLock(bytes, 0, 1000 * 1000 * 1000L);
+            }
+        }).get());
+        long time = System.nanoTime() - start;
+        assertTrue("took " + time / 1000 + " us", time < 500 * 1000 * 1000L);
+        es.shutdown();
+    }
+
+    @Test
+    public void testLiveTicketIsNotSkipped() throws Exception {
+        final Bytes bytes = new DirectStore(null, 64, true).createSlice();
+        final SharedMapLockStrategy strategy = SharedMapLockStrategies.TICKET;
+        assertTrue(strategy.tryLock(bytes, 0));
+
+        // a waiter which times out but is still running, e.g. descheduled, keeps its turn.
+        final CountDownLatch timedOut = new CountDownLatch(1);
+        final CountDownLatch cancel = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                strategy.tryLock(bytes, 0, 1000 * 1000);
+                timedOut.countDown();
+                try {
+                    cancel.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                strategy.cancelWait(bytes, 0);
+            }
+        });
+        thread.start();
+        timedOut.await();
+
+        strategy.unlock(bytes, 0);
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        assertFalse(es.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return strategy.tryLock(bytes, 0, 50 * 1000 * 1000L);
+            }
+        }).get());
+
+        cancel.countDown();
+        thread.join();
+        assertTrue(es.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                if (!strategy.tryLock(bytes, 0, 1000 * 1000 * 1000L))
+                    return false;
+                strategy.unlock(bytes, 0);
+                return true;
+            }
+        }).get());
+        es.shutdown();
+    }
+
+    @Test
+    public void testCancelledTicketIsSkipped() throws Exception {
+        final Bytes bytes = new DirectStore(null, 64, true).createSlice();
+        final SharedMapLockStrategy strategy = SharedMapLockStrategies.TICKET;
+        assertTrue(strategy.tryLock(bytes, 0));
+
+        ExecutorService first = Executors.newSingleThreadExecutor();
+        ExecutorService second = Executors.newSingleThreadExecutor();
+        assertFalse(first.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return strategy.tryLock(bytes, 0, 1000 * 1000);
+            }
+        }).get());
+        Future<Boolean> waiter = second.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                if (!strategy.tryLock(bytes, 0, 1000 * 1000 * 1000L))
+                    return false;
+                strategy.unlock(bytes, 0);
+                return true;
+            }
+        });
+        Thread.sleep(10);
+        // gives up a place which isn't last in the queue and hasn't come yet.
+        first.submit(new Runnable() {
+            @Override
+            public void run() {
+                strategy.cancelWait(bytes, 0);
+            }
+        }).get();
+
+        strategy.unlock(bytes, 0);
+        long start = System.nanoTime();
+        assertTrue(waiter.get());
+        long time = System.nanoTime() - start;
+        assertTrue("took " + time / 1000 + " us", time < 500 * 1000 * 1000L);
+        first.shutdown();
+        second.shutdown();
+    }
+
+    @Test
+    public void testContendedPuts() throws Exception {
+        for (SharedMapLockStrategy strategy : SharedMapLockStrategies.values())
+            testContendedPuts(strategy);
+    }
+
+    private void testContendedPuts(SharedMapLockStrategy strategy) throws IOException, InterruptedException, ExecutionException {
+        final SharedHashMap<Integer, Integer> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(1)
+                .lockStrategy(strategy)
+                .create(SharedHashMapTest.getPersistenceFile(), Integer.class, Integer.class);
+        ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int key = t;
+            futures.add(es.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int i = 0; i < ITERATIONS; i++)
+                        map.put(key, i);
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        es.shutdown();
+
+        for (int t = 0; t < THREADS; t++)
+            assertEquals(strategy.toString(), (Integer) (ITERATIONS - 1), map.get(t));
+        assertTrue(map.contendedLocks() >= 0);
+        assertTrue(map.lockWaitNanos() >= 0);
+        map.close();
+    }
+}
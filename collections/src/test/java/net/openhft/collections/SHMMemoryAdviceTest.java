@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.EnumSet;
+
+import static org.junit.Assert.*;
+
+public class SHMMemoryAdviceTest {
+
+    @Test
+    public void testMemoryAdvice() throws IOException {
+        // where advice isn't supported or permitted, it is logged and ignored.
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(10000)
+                .indexMemoryAdvice(SharedMapMemoryAdvice.WILLNEED, SharedMapMemoryAdvice.LOCK)
+                .entryMemoryAdvice(SharedMapMemoryAdvice.RANDOM)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        assertEquals(EnumSet.of(SharedMapMemoryAdvice.WILLNEED, SharedMapMemoryAdvice.LOCK),
+                map.builder().indexMemoryAdvice());
+        assertEquals(EnumSet.of(SharedMapMemoryAdvice.RANDOM), map.builder().entryMemoryAdvice());
+
+        map.put("hello", "world");
+        assertEquals("world", map.get("hello"));
+        map.close();
+    }
+
+    @Test
+    public void testAdviceDoesNotCreateSegments() throws IOException {
+        VanillaSharedHashMap<String, String> map = (VanillaSharedHashMap<String, String>) new SharedHashMapBuilder()
+                .entries(10000)
+                .minSegments(64)
+                .indexMemoryAdvice(SharedMapMemoryAdvice.WILLNEED)
+                .entryMemoryAdvice(SharedMapMemoryAdvice.RANDOM)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        assertEquals(0, map.createdSegments());
+        map.put("hello", "world");
+        assertEquals(1, map.createdSegments());
+        map.close();
+    }
+
+    @Test
+    public void testNoAdviceByDefault() {
+        assertTrue(new SharedHashMapBuilder().indexMemoryAdvice().isEmpty());
+        assertTrue(new SharedHashMapBuilder().entryMemoryAdvice().isEmpty());
+    }
+}
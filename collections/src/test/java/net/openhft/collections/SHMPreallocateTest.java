@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class SHMPreallocateTest {
+
+    @Test
+    public void testPreallocate() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(10000)
+                .preallocate(true)
+                .create(file, String.class, String.class);
+        assertTrue(map.builder().preallocate());
+        long length = file.length();
+        map.put("hello", "world");
+
+        // opening it again doesn't change the entries.
+        SharedHashMap<String, String> map2 = new SharedHashMapBuilder()
+                .preallocate(true)
+                .create(file, String.class, String.class);
+        assertEquals(length, file.length());
+        assertEquals("world", map2.get("hello"));
+
+        map2.close();
+        map.close();
+    }
+
+    @Test
+    public void testPreallocatePastTheEnd() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        VanillaSharedHashMap.preallocate(file, 1 << 20);
+        assertEquals(1 << 20, file.length());
+        long unallocated = VanillaSharedHashMap.preallocate(file, 3 << 20);
+        assertEquals(3 << 20, file.length());
+        // all of it with fallocate(), or else only past the old end, leaving the start to be touched once mapped.
+        assertTrue(unallocated == 0 || unallocated == 1 << 20);
+        file.delete();
+    }
+
+    @Test
+    public void testPreallocateFromTwoThreads() throws Exception {
+        final File file = SharedHashMapTest.getPersistenceFile();
+        ExecutorService es = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            for (int t = 0; t < 2; t++)
+                futures.add(es.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws IOException {
+                        // a second FileLock of the same file in one JVM would throw OverlappingFileLockException.
+                        for (int i = 0; i < 20; i++)
+                            VanillaSharedHashMap.preallocate(file, 1 << 20);
+                        return file.length();
+                    }
+                }));
+            for (Future<Long> future : futures)
+                assertEquals(1 << 20, (long) future.get());
+        } finally {
+            es.shutdown();
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class SHMPretouchTest {
+
+    @Test
+    public void testPretouch() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(100000)
+                .minSegments(16)
+                .pretouch(SharedMapPretouch.INDEX)
+                .create(file, String.class, String.class);
+        assertEquals(SharedMapPretouch.INDEX, map.builder().pretouch());
+        map.put("hello", "world");
+
+        assertEquals(0, map.pretouch(SharedMapPretouch.NONE));
+        long index = map.pretouch(SharedMapPretouch.INDEX);
+        long all = map.pretouch(SharedMapPretouch.ALL);
+        assertTrue(index >= 16);
+        // every page of the file is touched once.
+        assertTrue(all > index);
+        assertTrue(all <= file.length() / VanillaSharedHashMap.PAGE_SIZE + 16);
+
+        // nothing was changed.
+        assertEquals(1, map.size());
+        assertEquals("world", map.get("hello"));
+        map.close();
+    }
+}
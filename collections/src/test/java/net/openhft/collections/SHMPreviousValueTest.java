@@ -0,0 +1,104 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+import net.openhft.lang.io.serialization.BytesMarshallable;
+import net.openhft.lang.model.constraints.NotNull;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import static org.junit.Assert.*;
+
+public class SHMPreviousValueTest {
+
+    public static class Price implements BytesMarshallable {
+        double bid, ask;
+
+        @Override
+        public void readMarshallable(@NotNull Bytes in) throws IllegalStateException {
+            bid = in.readDouble();
+            ask = in.readDouble();
+        }
+
+        @Override
+        public void writeMarshallable(@NotNull Bytes out) {
+            out.writeDouble(bid);
+            out.writeDouble(ask);
+        }
+    }
+
+    static class SerializablePrice implements Serializable {
+        private static final long serialVersionUID = 0L;
+        double bid, ask;
+    }
+
+    private static Price price(double bid, double ask) {
+        Price price = new Price();
+        price.bid = bid;
+        price.ask = ask;
+        return price;
+    }
+
+    @Test
+    public void testPreviousValueIsCopiedIntoHolder() throws IOException {
+        SharedHashMap<String, Price> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .putReturnsNull(true)
+                .removeReturnsNull(true)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, Price.class);
+        Price holder = new Price();
+        assertNull(map.putUsing("EURUSD", price(1.1, 1.2), holder));
+        assertSame(holder, map.putUsing("EURUSD", price(1.3, 1.4), holder));
+        assertEquals(1.1, holder.bid, 0.0);
+        assertEquals(1.2, holder.ask, 0.0);
+
+        assertSame(holder, map.replaceUsing("EURUSD", price(1.5, 1.6), holder));
+        assertEquals(1.3, holder.bid, 0.0);
+        assertNull(map.replaceUsing("GBPUSD", price(1.5, 1.6), holder));
+
+        assertSame(holder, map.removeUsing("EURUSD", holder));
+        assertEquals(1.5, holder.bid, 0.0);
+        assertEquals(1.6, holder.ask, 0.0);
+        assertNull(map.removeUsing("EURUSD", holder));
+
+        // the plain methods still honour putReturnsNull and removeReturnsNull
+        assertNull(map.put("EURUSD", price(1.1, 1.2)));
+        assertNull(map.put("EURUSD", price(1.1, 1.2)));
+        assertNull(map.remove("EURUSD"));
+        map.close();
+    }
+
+    @Test
+    public void testOnlyBytesMarshallableHoldersAreReused() throws IOException {
+        SharedHashMap<String, SerializablePrice> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, SerializablePrice.class);
+        map.put("EURUSD", new SerializablePrice());
+        try {
+            // it would be read as a new object, not copied into.
+            map.putUsing("EURUSD", new SerializablePrice(), new SerializablePrice());
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+        assertNotNull(map.removeUsing("EURUSD", null));
+        map.close();
+    }
+}
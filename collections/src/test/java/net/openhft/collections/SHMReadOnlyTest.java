@@ -0,0 +1,196 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SHMReadOnlyTest {
+
+    @Test
+    public void testReadOnlyMap() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> writer = new SharedHashMapBuilder()
+                .entries(1000)
+                .create(file, String.class, String.class);
+        writer.put("hello", "world");
+        writer.put("bye", "now");
+
+        SharedHashMap<String, String> reader = new SharedHashMapBuilder()
+                .readOnly(true)
+                .create(file, String.class, String.class);
+        assertTrue(reader.builder().readOnly());
+        assertEquals("world", reader.get("hello"));
+        assertTrue(reader.containsKey("bye"));
+        assertNull(reader.get("other"));
+        assertEquals(2, reader.size());
+        assertEquals(2, reader.entrySet().size());
+
+        try {
+            reader.put("other", "value");
+            fail();
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+        try {
+            reader.remove("hello");
+            fail();
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+        try {
+            reader.acquireUsing("other", null);
+            fail();
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+        try {
+            reader.clear();
+            fail();
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+
+        // changes by the writer are seen.
+        writer.remove("bye");
+        assertFalse(reader.containsKey("bye"));
+        assertEquals(1, reader.size());
+
+        reader.close();
+        writer.close();
+    }
+
+    @Test
+    public void testOnlyChangesMoveTheGeneration() throws IOException {
+        VanillaSharedHashMap<String, String> map = (VanillaSharedHashMap<String, String>) new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(1)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        VanillaSharedHashMap.Segment segment = map.segment(0);
+        long generation = segment.bytes.readVolatileLong(VanillaSharedHashMap.Segment.GENERATION_OFFSET);
+
+        // reads under the lock leave it alone, so they don't make read only readers retry.
+        assertNull(map.get("hello"));
+        assertFalse(map.containsKey("hello"));
+        assertEquals(generation, segment.bytes.readVolatileLong(VanillaSharedHashMap.Segment.GENERATION_OFFSET));
+
+        map.put("hello", "world");
+        assertEquals("world", map.get("hello"));
+        assertEquals(generation + 2, segment.bytes.readVolatileLong(VanillaSharedHashMap.Segment.GENERATION_OFFSET));
+        map.remove("hello");
+        assertEquals(generation + 4, segment.bytes.readVolatileLong(VanillaSharedHashMap.Segment.GENERATION_OFFSET));
+        map.close();
+    }
+
+    @Test
+    public void testGetMissingValueIsNotAdded() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> writer = new SharedHashMapBuilder()
+                .entries(1000)
+                .create(file, String.class, String.class);
+        SharedHashMap<String, String> reader = new SharedHashMapBuilder()
+                .readOnly(true)
+                .eventListener(new SharedMapEventListener<String, String>() {
+                    @Override
+                    public String onGetMissing(SharedHashMap<String, String> map, Bytes keyBytes, String key, String usingValue) {
+                        return "default";
+                    }
+
+                    @Override
+                    public void onGetFound(SharedHashMap<String, String> map, Bytes entry, int metaDataBytes, String key, String value) {
+                    }
+
+                    @Override
+                    public void onPut(SharedHashMap<String, String> map, Bytes entry, int metaDataBytes, boolean added, String key, String value) {
+                    }
+
+                    @Override
+                    public void onRemove(SharedHashMap<String, String> map, Bytes entry, int metaDataBytes, String key, String value) {
+                    }
+                })
+                .create(file, String.class, String.class);
+        // returned, but writing it to the read only mapping would crash.
+        assertEquals("default", reader.get("hello"));
+        assertEquals(0, reader.size());
+        assertNull(writer.get("hello"));
+
+        reader.close();
+        writer.close();
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testReadOnlyMapMustExist() throws IOException {
+        new SharedHashMapBuilder()
+                .readOnly(true)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+    }
+
+    @Test
+    public void testReadersSeeConsistentValues() throws Exception {
+        File file = SharedHashMapTest.getPersistenceFile();
+        final SharedHashMap<String, String> writer = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(4)
+                .create(file, String.class, String.class);
+        final SharedHashMap<String, String> reader = new SharedHashMapBuilder()
+                .readOnly(true)
+                .create(file, String.class, String.class);
+
+        final int keys = 100;
+        for (int i = 0; i < keys; i++)
+            writer.put("key-" + i, "key-" + i + ":0");
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<String> error = new AtomicReference<String>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running.get()) {
+                    for (int i = 0; i < keys; i++) {
+                        String key = "key-" + i;
+                        String value = reader.get(key);
+                        if (value == null || !value.startsWith(key + ":"))
+                            error.compareAndSet(null, key + " was " + value);
+                    }
+                }
+            }
+        });
+        thread.start();
+
+        StringBuilder padding = new StringBuilder();
+        for (int n = 1; n <= 1000; n++) {
+            // vary the length of the values so a torn read would be visible.
+            padding.setLength(n % 50);
+            for (int i = 0; i < keys; i++)
+                writer.put("key-" + i, "key-" + i + ":" + n + padding.toString().replace('\0', '-'));
+        }
+        running.set(false);
+        thread.join();
+
+        assertNull(error.get());
+        reader.close();
+        writer.close();
+    }
+}
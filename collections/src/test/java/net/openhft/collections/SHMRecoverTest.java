@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class SHMRecoverTest {
+    static final long SEGMENT_START = SharedHashMapBuilder.HEADER_SIZE;
+
+    private static SharedHashMapBuilder builder() {
+        return new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(1);
+    }
+
+    @Test
+    public void testRecoverSize() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<Integer, String> map = builder().create(file, Integer.class, String.class);
+        for (int i = 0; i < 100; i++)
+            map.put(i, "value-" + i);
+        assertEquals(0, map.recover());
+
+        writeInt(file, SEGMENT_START + VanillaSharedHashMap.Segment.SIZE_OFFSET, 123);
+        assertEquals(123, map.size());
+        assertEquals(1, map.recover());
+        assertEquals(100, map.size());
+        for (int i = 0; i < 100; i++)
+            assertEquals("value-" + i, map.get(i));
+        map.close();
+    }
+
+    @Test
+    public void testRecoverOnOpen() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<Integer, String> map = builder().create(file, Integer.class, String.class);
+        for (int i = 0; i < 10; i++)
+            map.put(i, "value-" + i);
+        map.close();
+
+        writeInt(file, SEGMENT_START + VanillaSharedHashMap.Segment.SIZE_OFFSET, -1);
+        SharedHashMap<Integer, String> map2 = builder().recoverOnOpen(true).create(file, Integer.class, String.class);
+        assertEquals(10, map2.size());
+        assertEquals("value-9", map2.get(9));
+        map2.close();
+    }
+
+    @Test
+    public void testEntriesNotIndexedAreFreed() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<Integer, String> map = builder().create(file, Integer.class, String.class);
+        for (int i = 0; i < 10; i++)
+            map.put(i, "value-" + i);
+
+        // as if every put died before adding to the index, so their values could be torn, or every remove died
+        // before freeing its entry, so their keys shouldn't come back.
+        int indexSize = (int) ((VanillaSharedHashMap) map).sizeOfMultiMap();
+        write(file, SEGMENT_START + SharedHashMapBuilder.SEGMENT_HEADER, ByteBuffer.allocate(indexSize));
+        assertTrue(map.recover() >= 10);
+        assertEquals(0, map.size());
+        assertNull(map.get(1));
+        assertEquals(0, map.recover());
+
+        // the entries can be used again.
+        for (int i = 0; i < 10; i++)
+            map.put(i, "value2-" + i);
+        assertEquals(10, map.size());
+        assertEquals("value2-5", map.get(5));
+        assertEquals("value2-5", map.remove(5));
+        assertEquals(9, map.size());
+        map.close();
+    }
+
+    private static void writeInt(File file, long offset, int value) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder());
+        bb.putInt(0, value);
+        write(file, offset, bb);
+    }
+
+    private static void write(File file, long offset, ByteBuffer bb) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.getChannel().write(bb, offset);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.DirectBytes;
+import net.openhft.lang.io.DirectStore;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class SHMSegmentSelectorTest {
+
+    private static long partitionHash(SharedMapSegmentSelector selector, String key) {
+        DirectBytes bytes = new DirectStore(null, 64, false).createSlice();
+        // as a String key is marshalled.
+        bytes.writeUTFΔ(key);
+        bytes.flip();
+        return selector.partitionHash(bytes, 0L);
+    }
+
+    @Test
+    public void testTextPrefix() {
+        SharedMapSegmentSelector selector = SharedMapSegmentSelectors.textPrefix(8);
+        long hash = partitionHash(selector, "ACC00001:balance");
+        assertEquals(hash, partitionHash(selector, "ACC00001:positions"));
+        assertEquals(hash, partitionHash(selector, "ACC00001"));
+        assertTrue(hash != partitionHash(selector, "ACC00002:balance"));
+        assertEquals(SharedMapSegmentSelectors.textPrefix(8), selector);
+        assertFalse(SharedMapSegmentSelectors.prefix(8).equals(selector));
+    }
+
+    /**
+     * @return the index of the segment the key was added to.
+     */
+    private static int put(VanillaSharedHashMap<String, String> map, String key, String value) {
+        VanillaSharedHashMap<String, String>.Segment[] segments = map.segments();
+        int[] sizes = new int[segments.length];
+        for (int i = 0; i < segments.length; i++)
+            sizes[i] = segments[i].getSize();
+        assertNull(map.put(key, value));
+        int added = -1;
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i].getSize() != sizes[i]) {
+                assertEquals(-1, added);
+                added = i;
+            }
+        }
+        assertTrue(added >= 0);
+        return added;
+    }
+
+    @Test
+    public void testMapWithPartitionedKeys() throws IOException {
+        VanillaSharedHashMap<String, String> map = (VanillaSharedHashMap<String, String>) new SharedHashMapBuilder()
+                // room for every partition in one segment.
+                .entries(2000)
+                .minSegments(16)
+                .segmentSelector(SharedMapSegmentSelectors.textPrefix(8))
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        assertEquals(SharedMapSegmentSelectors.textPrefix(8), map.builder().segmentSelector());
+        for (int a = 0; a < 5; a++) {
+            int segment = put(map, String.format("ACC%05d:0", a), "value-" + a + "-0");
+            // every key with the same prefix is in the same segment.
+            for (int k = 1; k < 20; k++)
+                assertEquals(segment, put(map, String.format("ACC%05d:%d", a, k), "value-" + a + "-" + k));
+        }
+        assertEquals(100, map.size());
+        assertEquals("value-3-7", map.get("ACC00003:7"));
+        assertEquals("value-3-7", map.remove("ACC00003:7"));
+        assertFalse(map.containsKey("ACC00003:7"));
+        map.close();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class SHMShardedTest {
+
+    private static File[] shardFiles(int count) {
+        File[] files = new File[count];
+        for (int i = 0; i < count; i++)
+            files[i] = SharedHashMapTest.getPersistenceFile();
+        return files;
+    }
+
+    @Test
+    public void testSegmentsSpreadOverFiles() throws IOException {
+        File[] files = shardFiles(3);
+        SharedHashMap<Integer, String> map = new SharedHashMapBuilder()
+                .entries(20000)
+                .minSegments(16)
+                .createSharded(files, Integer.class, String.class);
+        assertEquals(files[0], map.file());
+        for (int i = 0; i < 10000; i++)
+            map.put(i, "value-" + i);
+        assertEquals(10000, map.size());
+        for (int i = 0; i < 10000; i += 2)
+            assertEquals("value-" + i, map.remove(i));
+        assertEquals(5000, map.size());
+        map.close();
+
+        for (File file : files)
+            assertTrue(file.length() > SharedHashMapBuilder.HEADER_SIZE);
+
+        // opened again with the settings stored in the files.
+        SharedHashMap<Integer, String> map2 = new SharedHashMapBuilder()
+                .createSharded(files, Integer.class, String.class);
+        assertEquals(5000, map2.size());
+        for (int i = 0; i < 10000; i++)
+            assertEquals(i % 2 == 0 ? null : "value-" + i, map2.get(i));
+        map2.close();
+    }
+
+    @Test
+    public void testFilesMustBeInTheSameOrder() throws IOException {
+        File[] files = shardFiles(2);
+        new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(4)
+                .createSharded(files, Integer.class, String.class).close();
+        try {
+            new SharedHashMapBuilder().createSharded(new File[]{files[1], files[0]}, Integer.class, String.class);
+            fail("The files were swapped");
+        } catch (IOException expected) {
+            // expected
+        }
+        try {
+            new SharedHashMapBuilder().create(files[0], Integer.class, String.class);
+            fail("Only one of the files");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testMissingShardIsAnError() throws IOException {
+        File[] files = shardFiles(3);
+        SharedHashMap<Integer, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(4)
+                .createSharded(files, Integer.class, String.class);
+        map.put(1, "one");
+        map.close();
+
+        // as if the tier holding it was wiped.
+        assertTrue(files[2].delete());
+        try {
+            new SharedHashMapBuilder().createSharded(files, Integer.class, String.class);
+            fail("The shard is missing");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains(files[2].toString()));
+        }
+        assertFalse(files[2].exists());
+
+        RandomAccessFile raf = new RandomAccessFile(files[1], "rw");
+        raf.setLength(SharedHashMapBuilder.HEADER_SIZE);
+        raf.close();
+        try {
+            new SharedHashMapBuilder().createSharded(files, Integer.class, String.class);
+            fail("The shard is truncated");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains(files[1].toString()));
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SHMSingleWriterTest {
+
+    @Test
+    public void testSingleWriterIsStoredInTheFile() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> writer = new SharedHashMapBuilder()
+                .entries(1000)
+                .singleWriter(true)
+                .create(file, String.class, String.class);
+        writer.put("hello", "world");
+
+        SharedHashMap<String, String> reader = new SharedHashMapBuilder()
+                .entries(1000)
+                .create(file, String.class, String.class);
+        assertTrue(reader.builder().singleWriter());
+        assertEquals("world", reader.get("hello"));
+        assertTrue(reader.containsKey("hello"));
+        assertNull(reader.get("bye"));
+        assertFalse(reader.containsKey("bye"));
+
+        writer.remove("hello");
+        assertNull(reader.get("hello"));
+
+        reader.close();
+        writer.close();
+    }
+
+    @Test
+    public void testReadersSeeConsistentValues() throws Exception {
+        File file = SharedHashMapTest.getPersistenceFile();
+        final SharedHashMap<String, String> writer = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(4)
+                .singleWriter(true)
+                .create(file, String.class, String.class);
+        // a second mapping of the same file, as another process would have.
+        final SharedHashMap<String, String> reader = new SharedHashMapBuilder()
+                .create(file, String.class, String.class);
+
+        final int keys = 100;
+        for (int i = 0; i < keys; i++)
+            writer.put("key-" + i, "key-" + i + ":0");
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<String> error = new AtomicReference<String>();
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (running.get()) {
+                        for (int i = 0; i < keys; i++) {
+                            String key = "key-" + i;
+                            String value = reader.get(key);
+                            if (value == null || !value.startsWith(key + ":"))
+                                error.compareAndSet(null, key + " was " + value);
+                        }
+                    }
+                }
+            });
+            readers[t].start();
+        }
+
+        StringBuilder padding = new StringBuilder();
+        for (int n = 1; n <= 2000; n++) {
+            // vary the length of the values so a torn read would be visible.
+            padding.setLength(n % 50);
+            for (int i = 0; i < keys; i++)
+                writer.put("key-" + i, "key-" + i + ":" + n + padding.toString().replace('\0', '-'));
+        }
+        running.set(false);
+        for (Thread thread : readers)
+            thread.join();
+
+        assertNull(error.get());
+        assertEquals(keys, reader.size());
+
+        reader.close();
+        writer.close();
+    }
+
+    @Test
+    public void testOnlyTheWriterCanChangeTheMap() throws IOException {
+        // only Linux has /proc to check the writer is alive, and the pid namespace is read with JNA.
+        if (!new File("/proc/1").exists() || Processes.pidNamespace() == 0)
+            return;
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(1)
+                .singleWriter(true)
+                .create(file, String.class, String.class);
+        map.put("hello", "world");
+
+        // as if another process which is running were the writer.
+        writeWriter(file, 1);
+        try {
+            map.put("bye", "world");
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            map.clear();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            map.compact();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            map.recover();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals("world", map.get("hello"));
+
+        // a writer which has exited is taken over.
+        writeWriter(file, deadProcessId());
+        map.put("bye", "world");
+        assertEquals(2, map.size());
+        map.close();
+    }
+
+    private static int deadProcessId() {
+        for (int pid = 4 * 1000 * 1000; ; pid--)
+            if (!new File("/proc/" + pid).exists())
+                return pid;
+    }
+
+    private static void writeWriter(File file, int processId) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+        bb.putLong(0, processId);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.getChannel().write(bb, SharedHashMapBuilder.WRITER_OFFSET);
+        } finally {
+            raf.close();
+        }
+    }
+}
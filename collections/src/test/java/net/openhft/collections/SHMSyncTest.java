@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class SHMSyncTest {
+
+    private static int dirtySegments(VanillaSharedHashMap<?, ?> map) {
+        int dirty = 0;
+        for (int i = 0; i < map.builder().actualSegments(); i++)
+            if (map.segment(i).bytes.readVolatileInt(VanillaSharedHashMap.Segment.DIRTY_OFFSET) != 0)
+                dirty++;
+        return dirty;
+    }
+
+    @Test
+    public void testForcedChangesAreKept() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .create(file, String.class, String.class);
+        map.put("hello", "world");
+        map.force();
+        map.put("bye", "now");
+        map.force("bye");
+        // a key which isn't in the map still has a segment.
+        map.force("other");
+        map.close();
+
+        SharedHashMap<String, String> map2 = new SharedHashMapBuilder()
+                .create(file, String.class, String.class);
+        assertEquals("world", map2.get("hello"));
+        assertEquals("now", map2.get("bye"));
+        map2.close();
+    }
+
+    @Test
+    public void testOnlyChangedSegmentsAreSynced() throws IOException {
+        VanillaSharedHashMap<String, String> map = (VanillaSharedHashMap<String, String>) new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(16)
+                .syncPolicy(SharedMapSyncPolicy.DIRTY_SEGMENTS)
+                // long enough that the background sync doesn't run during the test.
+                .syncIntervalMS(60 * 1000)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        assertEquals(0, dirtySegments(map));
+
+        map.put("hello", "world");
+        assertEquals(1, dirtySegments(map));
+        map.sync();
+        assertEquals(0, dirtySegments(map));
+
+        map.put("hello", "world2");
+        map.force("hello");
+        assertEquals(0, dirtySegments(map));
+
+        map.remove("hello");
+        assertEquals(1, dirtySegments(map));
+        map.clear();
+        assertEquals(16, dirtySegments(map));
+        map.sync();
+        assertEquals(0, dirtySegments(map));
+        map.close();
+    }
+
+    @Test
+    public void testSegmentsAreNotMarkedWithoutDirtySegments() throws IOException {
+        VanillaSharedHashMap<String, String> map = (VanillaSharedHashMap<String, String>) new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(16)
+                .syncPolicy(SharedMapSyncPolicy.PERIODIC)
+                .syncIntervalMS(60 * 1000)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        map.put("hello", "world");
+        assertEquals(0, dirtySegments(map));
+        map.close();
+    }
+
+    @Test
+    public void testBackgroundSync() throws Exception {
+        File file = SharedHashMapTest.getPersistenceFile();
+        VanillaSharedHashMap<String, String> map = (VanillaSharedHashMap<String, String>) new SharedHashMapBuilder()
+                .entries(1000)
+                .syncPolicy(SharedMapSyncPolicy.DIRTY_SEGMENTS)
+                .syncIntervalMS(10)
+                .create(file, String.class, String.class);
+        assertEquals(SharedMapSyncPolicy.DIRTY_SEGMENTS, map.builder().syncPolicy());
+        assertEquals(10, map.builder().syncIntervalMS());
+
+        for (int i = 0; i < 100; i++)
+            map.put("key-" + i, "value-" + i);
+        for (int i = 0; i < 100 && dirtySegments(map) > 0; i++)
+            Thread.sleep(10);
+        assertEquals(0, dirtySegments(map));
+        map.close();
+
+        SharedHashMap<String, String> map2 = new SharedHashMapBuilder()
+                .create(file, String.class, String.class);
+        assertEquals(100, map2.size());
+        assertEquals("value-42", map2.get("key-42"));
+        map2.close();
+    }
+
+    @Test
+    public void testForceReadOnly() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> writer = new SharedHashMapBuilder()
+                .entries(1000)
+                .syncPolicy(SharedMapSyncPolicy.DIRTY_SEGMENTS)
+                .syncIntervalMS(60 * 1000)
+                .create(file, String.class, String.class);
+        writer.put("hello", "world");
+
+        SharedHashMap<String, String> reader = new SharedHashMapBuilder()
+                .readOnly(true)
+                .syncPolicy(SharedMapSyncPolicy.DIRTY_SEGMENTS)
+                .create(file, String.class, String.class);
+        // writes back the changes of the writer, without changing the map.
+        reader.force();
+        reader.force("hello");
+        reader.force("other");
+        assertEquals("world", reader.get("hello"));
+        assertEquals(1, dirtySegments((VanillaSharedHashMap<?, ?>) writer));
+
+        reader.close();
+        writer.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSyncIntervalMustBePositive() {
+        new SharedHashMapBuilder().syncIntervalMS(0);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class SHMTransactionTest {
+    static final int ACCOUNTS = 20;
+    static final int THREADS = 4;
+    static final int TRANSFERS = 2000;
+
+    private static SharedHashMap<Integer, Long> createMap() throws IOException {
+        return new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(8)
+                .transactional(true)
+                .create(SharedHashMapTest.getPersistenceFile(), Integer.class, Long.class);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNotTransactional() throws IOException {
+        SharedHashMap<Integer, Long> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .create(SharedHashMapTest.getPersistenceFile(), Integer.class, Long.class);
+        try {
+            map.begin();
+        } finally {
+            map.close();
+        }
+    }
+
+    @Test
+    public void testCommitAndConflict() throws IOException {
+        SharedHashMap<Integer, Long> map = createMap();
+        assertTrue(map.builder().transactional());
+        map.put(1, 100L);
+
+        SharedMapTransaction<Integer, Long> tx = map.begin();
+        long from = tx.get(1);
+        assertNull(tx.get(2));
+        tx.put(1, from - 10);
+        tx.put(2, 10L);
+        assertEquals((Long) 10L, tx.get(2));
+        // not visible until committed.
+        assertNull(map.get(2));
+        assertTrue(tx.commit());
+        assertEquals((Long) 90L, map.get(1));
+        assertEquals((Long) 10L, map.get(2));
+
+        SharedMapTransaction<Integer, Long> tx2 = map.begin();
+        tx2.put(2, tx2.get(1) + tx2.get(2));
+        tx2.remove(1);
+        // changed after it was read.
+        map.put(1, 50L);
+        assertFalse(tx2.commit());
+        assertEquals((Long) 50L, map.get(1));
+        assertEquals((Long) 10L, map.get(2));
+
+        SharedMapTransaction<Integer, Long> tx3 = map.begin();
+        tx3.remove(1);
+        tx3.rollback();
+        assertEquals((Long) 50L, map.get(1));
+        try {
+            tx3.commit();
+            fail();
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+        map.close();
+    }
+
+    @Test
+    public void testDeadCommitterIsRolledBack() throws IOException {
+        VanillaSharedHashMap<Integer, Long> map = (VanillaSharedHashMap<Integer, Long>) createMap();
+        map.put(1, 100L);
+
+        // a committer in another process which wrote its undo log, applied the first write and then died.
+        SharedMapTransaction<Integer, Long> abandoned = map.begin();
+        abandoned.put(1, 90L);
+        abandoned.put(2, 10L);
+        long deadOwner = (long) Integer.MAX_VALUE << 32;
+        long slot = map.transactionLog().tryAcquire(deadOwner);
+        assertTrue(slot >= 0);
+        ((VanillaSharedHashMap<Integer, Long>.Transaction) abandoned).writeUndoLog(slot);
+        map.put(1, 90L);
+        assertEquals("[" + slot + "]", Arrays.toString(map.transactionLog().abandonedSlots()));
+
+        // the next commit rolls it back before its own writes.
+        SharedMapTransaction<Integer, Long> tx = map.begin();
+        tx.put(3, 30L);
+        assertTrue(tx.commit());
+        assertEquals((Long) 100L, map.get(1));
+        assertNull(map.get(2));
+        assertEquals((Long) 30L, map.get(3));
+        assertEquals(0, map.transactionLog().abandonedSlots().length);
+        assertFalse(map.transactionLog().isCommitting(slot));
+        map.close();
+    }
+
+    @Test
+    public void testConcurrentTransfers() throws Exception {
+        final SharedHashMap<Integer, Long> map = createMap();
+        for (int i = 0; i < ACCOUNTS; i++)
+            map.put(i, 1000L);
+
+        ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int seed = t;
+            futures.add(es.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    Random rand = new Random(seed);
+                    for (int i = 0; i < TRANSFERS; i++) {
+                        int from = rand.nextInt(ACCOUNTS), to = rand.nextInt(ACCOUNTS);
+                        if (from == to)
+                            continue;
+                        while (true) {
+                            SharedMapTransaction<Integer, Long> tx = map.begin();
+                            tx.put(from, tx.get(from) - 1);
+                            tx.put(to, tx.get(to) + 1);
+                            if (tx.commit())
+                                break;
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        es.shutdown();
+
+        long total = 0;
+        for (int i = 0; i < ACCOUNTS; i++)
+            total += map.get(i);
+        assertEquals(ACCOUNTS * 1000L, total);
+        map.close();
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import net.openhft.lang.io.Bytes;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class SHMTryOperationsTest {
+
+    /**
+     * @return a listener which holds the segment lock while looking up a missing key until released.
+     */
+    private static SharedMapEventListener<String, String> lockingListener(final CountDownLatch locked,
+                                                                         final CountDownLatch release) {
+        return new SharedMapEventListener<String, String>() {
+            @Override
+            public String onGetMissing(SharedHashMap<String, String> map, Bytes keyBytes, String key, String usingValue) {
+                locked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                return null;
+            }
+
+            @Override
+            public void onGetFound(SharedHashMap<String, String> map, Bytes entry, int metaDataBytes, String key, String value) {
+            }
+
+            @Override
+            public void onPut(SharedHashMap<String, String> map, Bytes entry, int metaDataBytes, boolean added, String key, String value) {
+            }
+
+            @Override
+            public void onRemove(SharedHashMap<String, String> map, Bytes entry, int metaDataBytes, String key, String value) {
+            }
+        };
+    }
+
+    @Test
+    public void testTryOperationsWhenFree() throws IOException {
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        assertNull(map.tryPut("key", "value", 0));
+        assertEquals("value", map.tryGet("key", null, 0));
+        assertEquals("value", map.tryPut("key", "value2", 1000));
+        assertEquals("value2", map.tryRemove("key", 0));
+        assertNull(map.tryGet("key", null, 1000));
+        map.close();
+    }
+
+    @Test
+    public void testBusyWhileLocked() throws Exception {
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .eventListener(lockingListener(locked, release))
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                map.get("key");
+            }
+        });
+        thread.start();
+        locked.await();
+
+        try {
+            map.tryPut("key", "value", 0);
+            fail();
+        } catch (SharedMapBusyException expected) {
+        }
+        long start = System.nanoTime();
+        try {
+            map.tryGet("key", null, 10 * 1000 * 1000);
+            fail();
+        } catch (SharedMapBusyException expected) {
+        }
+        assertTrue(System.nanoTime() - start >= 10 * 1000 * 1000);
+
+        release.countDown();
+        thread.join();
+        assertNull(map.tryPut("key", "value", 1000 * 1000 * 1000));
+        assertEquals("value", map.tryRemove("key", 0));
+        map.close();
+    }
+
+    @Test
+    public void testTicketTryOperationsDontHoldUpOthers() throws Exception {
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(1)
+                .lockStrategy(SharedMapLockStrategies.TICKET)
+                .eventListener(lockingListener(locked, release))
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                map.get("key");
+            }
+        });
+        thread.start();
+        locked.await();
+
+        // each waits in the queue, then gives up its place.
+        for (int i = 0; i < 3; i++) {
+            try {
+                map.tryPut("key", "value", 1000 * 1000);
+                fail();
+            } catch (SharedMapBusyException expected) {
+            }
+            try {
+                map.tryRemove("key", 1000 * 1000);
+                fail();
+            } catch (SharedMapBusyException expected) {
+            }
+        }
+        release.countDown();
+        thread.join();
+
+        final long[] time = {0};
+        Thread putter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                map.put("key", "value");
+                time[0] = System.nanoTime() - start;
+            }
+        });
+        putter.start();
+        putter.join();
+        assertEquals("value", map.get("key"));
+        assertTrue("took " + time[0] / 1000 + " us", time[0] < 10 * 1000 * 1000L);
+        map.close();
+    }
+}
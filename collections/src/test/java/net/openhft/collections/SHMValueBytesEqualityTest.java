@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import static org.junit.Assert.*;
+
+public class SHMValueBytesEqualityTest {
+
+    // doesn't override equals(), so only the marshalled form can show two are equal.
+    static class Point implements Serializable {
+        private static final long serialVersionUID = 0L;
+        final int x, y;
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    @Test
+    public void testReplaceAndRemoveCompareBytes() throws IOException {
+        SharedHashMap<String, Point> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, Point.class);
+        map.put("key", new Point(1, 2));
+
+        assertFalse(map.replace("key", new Point(2, 1), new Point(3, 4)));
+        assertTrue(map.replace("key", new Point(1, 2), new Point(3, 4)));
+        assertEquals(4, map.get("key").y);
+
+        assertFalse(map.remove("key", new Point(1, 2)));
+        assertTrue(map.remove("key", new Point(3, 4)));
+        assertFalse(map.containsKey("key"));
+        map.close();
+    }
+
+    @Test
+    public void testValuesOfDifferentLengths() throws IOException {
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        map.put("key", "a value longer than one word");
+        assertFalse(map.replace("key", "a value longer than one", "short"));
+        assertFalse(map.replace("key", "a value longer than one word!", "short"));
+        assertFalse(map.replace("key", "a value longer than one wore", "short"));
+        assertTrue(map.replace("key", "a value longer than one word", "short"));
+        assertFalse(map.remove("key", "shorT"));
+        assertTrue(map.remove("key", "short"));
+        map.close();
+    }
+}
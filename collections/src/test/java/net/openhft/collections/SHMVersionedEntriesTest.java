@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class SHMVersionedEntriesTest {
+
+    private static SharedHashMap<String, String> createMap(File file) throws IOException {
+        return new SharedHashMapBuilder()
+                .entries(1000)
+                .entrySize(60)
+                .versionedEntries(true)
+                .create(file, String.class, String.class);
+    }
+
+    @Test
+    public void testVersionsIncrease() throws IOException {
+        SharedHashMap<String, String> map = createMap(SharedHashMapTest.getPersistenceFile());
+        assertEquals(64, map.builder().entrySize());
+        assertEquals(0, map.getVersion("key"));
+
+        map.put("key", "one");
+        long v1 = map.getVersion("key");
+        assertTrue(v1 > 0);
+        map.put("key", "two");
+        long v2 = map.getVersion("key");
+        assertTrue(v2 > v1);
+        assertFalse(map.replace("key", "one", "three"));
+        assertEquals(v2, map.getVersion("key"));
+        assertTrue(map.replace("key", "two", "three"));
+        long v3 = map.getVersion("key");
+        assertTrue(v3 > v2);
+
+        // removing and adding again doesn't reuse a version.
+        map.remove("key");
+        assertEquals(0, map.getVersion("key"));
+        map.put("key", "three");
+        assertTrue(map.getVersion("key") > v3);
+        map.close();
+    }
+
+    @Test
+    public void testPutIfVersion() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedHashMap<String, String> map = createMap(file);
+        assertFalse(map.putIfVersion("key", "one", 1));
+        assertTrue(map.putIfVersion("key", "one", 0));
+        assertFalse(map.putIfVersion("key", "two", 0));
+
+        long version = map.getVersion("key");
+        // another process changes the entry after it was read.
+        SharedHashMap<String, String> map2 = new SharedHashMapBuilder()
+                .create(file, String.class, String.class);
+        assertTrue(map2.builder().versionedEntries());
+        assertEquals(version, map2.getVersion("key"));
+        map2.put("key", "other");
+
+        assertFalse(map.putIfVersion("key", "two", version));
+        assertEquals("other", map.get("key"));
+        version = map.getVersion("key");
+        assertTrue(map.putIfVersion("key", "two", version));
+        assertEquals("two", map2.get("key"));
+
+        map2.close();
+        map.close();
+    }
+
+    @Test
+    public void testGetUsingWithVersion() throws IOException {
+        testGetUsingWithVersion(createMap(SharedHashMapTest.getPersistenceFile()));
+        // reads don't lock in single writer mode.
+        testGetUsingWithVersion(new SharedHashMapBuilder()
+                .entries(1000)
+                .entrySize(60)
+                .versionedEntries(true)
+                .singleWriter(true)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class));
+    }
+
+    private static void testGetUsingWithVersion(SharedHashMap<String, String> map) throws IOException {
+        long[] version = {-1};
+        assertNull(map.getUsing("key", null, version));
+        assertEquals(0, version[0]);
+
+        map.put("key", "one");
+        assertEquals("one", map.getUsing("key", null, version));
+        assertEquals(map.getVersion("key"), version[0]);
+        assertTrue(map.putIfVersion("key", "two", version[0]));
+
+        long previous = version[0];
+        assertEquals("two", map.getUsing("key", null, version));
+        assertTrue(version[0] > previous);
+        map.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testVersionsNotEnabled() throws IOException {
+        SharedHashMap<String, String> map = new SharedHashMapBuilder()
+                .entries(1000)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, String.class);
+        try {
+            map.getVersion("key");
+        } finally {
+            map.close();
+        }
+    }
+}
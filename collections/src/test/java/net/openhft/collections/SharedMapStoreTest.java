@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SharedMapStoreTest {
+
+    @Test
+    public void testNamedMapsInOneFile() throws IOException {
+        File file = SharedHashMapTest.getPersistenceFile();
+        SharedMapStore store = SharedMapStore.open(file, 64 << 20, 16);
+        SharedHashMap<String, String> small = new SharedHashMapBuilder()
+                .entries(1000)
+                .minSegments(4)
+                .entrySize(64)
+                .create(store, "small", String.class, String.class);
+        SharedHashMap<Integer, String> large = new SharedHashMapBuilder()
+                .entries(20000)
+                .minSegments(16)
+                .entryLocking(true)
+                .create(store, "large", Integer.class, String.class);
+        small.put("hello", "world");
+        for (int i = 0; i < 10000; i++)
+            large.put(i, "value-" + i);
+        assertEquals(1, small.size());
+        assertEquals(10000, large.size());
+        assertEquals(file, small.file());
+        assertEquals(Arrays.asList("small", "large"), store.names());
+        small.close();
+        large.close();
+        store.close();
+
+        // opened by name with the settings they were created with.
+        store = SharedMapStore.open(file, 0);
+        assertEquals(64 << 20, store.capacity());
+        assertEquals(16, store.maxMaps());
+        SharedHashMap<String, String> small2 = new SharedHashMapBuilder()
+                .create(store, "small", String.class, String.class);
+        SharedHashMap<Integer, String> large2 = new SharedHashMapBuilder()
+                .create(store, "large", Integer.class, String.class);
+        assertEquals(64, small2.builder().entrySize());
+        assertTrue(large2.builder().entryLocking());
+        assertEquals("world", small2.get("hello"));
+        assertEquals(10000, large2.size());
+        assertEquals("value-9999", large2.get(9999));
+        small2.close();
+        large2.close();
+        store.close();
+    }
+
+    @Test
+    public void testStoreFull() throws IOException {
+        SharedMapStore store = SharedMapStore.open(SharedHashMapTest.getPersistenceFile(), 1 << 20, 2);
+        try {
+            new SharedHashMapBuilder().entries(1000).minSegments(2).create(store, "a", String.class, String.class).close();
+            new SharedHashMapBuilder().entries(1000).minSegments(2).create(store, "b", String.class, String.class).close();
+            try {
+                new SharedHashMapBuilder().entries(1000).minSegments(2).create(store, "c", String.class, String.class);
+                fail("Only room for two maps");
+            } catch (IOException expected) {
+                // expected
+            }
+            try {
+                new SharedHashMapBuilder().entries(1 << 20).create(store, "b", String.class, String.class).close();
+            } catch (IOException e) {
+                fail("An existing map is opened, not added");
+            }
+        } finally {
+            store.close();
+        }
+    }
+}
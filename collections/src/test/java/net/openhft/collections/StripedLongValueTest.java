@@ -0,0 +1,75 @@
+/*
+ * Copyright 2013 Peter Lawrey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.collections;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class StripedLongValueTest {
+
+    private static SharedHashMap<String, StripedLongValue> createMap() throws IOException {
+        return new SharedHashMapBuilder()
+                .entries(100)
+                .entrySize(1024)
+                .create(SharedHashMapTest.getPersistenceFile(), String.class, StripedLongValue.class);
+    }
+
+    @Test
+    public void testCellsAreInSeparateCacheLines() throws IOException {
+        SharedHashMap<String, StripedLongValue> map = createMap();
+        StripedLongValue value = map.acquireUsing("counter", new StripedLongValue(5));
+        assertEquals(8, value.stripes());
+        assertEquals(8 * 64 + 60, value.maxSize());
+        assertEquals(0, value.getValue());
+        value.addValue(10);
+        value.decrement();
+        assertEquals(9, value.getValue());
+
+        // another reference to the same entry sees the same total.
+        assertEquals(9, map.getUsing("counter", new StripedLongValue(8)).getValue());
+        value.reset();
+        assertEquals(0, value.getValue());
+        map.close();
+    }
+
+    @Test
+    public void testIncrementFromManyThreads() throws Exception {
+        final SharedHashMap<String, StripedLongValue> map = createMap();
+        final int iterations = 100000;
+        final int noOfThreads = 4;
+        Thread[] threads = new Thread[noOfThreads];
+        for (int t = 0; t < noOfThreads; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    StripedLongValue value = map.acquireUsing("counter", new StripedLongValue());
+                    for (int i = 0; i < iterations; i++)
+                        value.increment();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(noOfThreads * iterations, map.getUsing("counter", new StripedLongValue()).getValue());
+        map.close();
+    }
+}